@@ -0,0 +1,200 @@
+/*
+ Copyright (C) 2012 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.teutoburg.collision;
+
+import java.util.ArrayList;
+import java.util.List;
+import wjd.math.Circle;
+import wjd.math.Rect;
+import wjd.teutoburg.simulation.Tile;
+
+/**
+ * Common base of the broad-phase implementations: each one only needs to
+ * report the overlapping pairs it finds, which are passed through a
+ * ContactCache to generate contact events.
+ *
+ * Colliders unregistered during a collision pass, typically from one of their
+ * own collision events, are only removed once the pass is over. Contacts
+ * involving a collider that has been removed end at the next pass.
+ *
+ * @author wdyce
+ * @since Jan 11, 2013
+ */
+public abstract class ACollisionManager implements ICollisionManager
+{
+  /* CONSTANTS */
+  private static final float FIRST_SEARCH_RADIUS = Tile.SIZE.x * 2;
+  
+  /* ATTRIBUTES */
+  protected final Rect boundary;
+  private ContactCache contacts = new ContactCache();
+  // removal is deferred while pairs are being generated
+  private boolean in_pass = false;
+  private final List<Collider> deferred_removals = new ArrayList<Collider>();
+  
+  /* METHODS */
+  
+  // constructors
+  
+  public ACollisionManager(Rect boundary_)
+  {
+    this.boundary = boundary_;
+  }
+  
+  // accessors
+  
+  public ContactCache getContactCache()
+  {
+    return contacts;
+  }
+  
+  // mutators
+  
+  public void setContactCache(ContactCache contacts_)
+  {
+    this.contacts = contacts_;
+  }
+  
+  /* IMPLEMENTS -- ICOLLISIONMANAGER */
+  
+  @Override
+  public Iterable<Collider> getInRect(Rect rect_query)
+  {
+    ColliderBuffer result = new ColliderBuffer();
+    visitInRect(rect_query, result);
+    return result;
+  }
+  
+  @Override
+  public Iterable<Collider> getInCircle(Circle circle_query)
+  {
+    ColliderBuffer result = new ColliderBuffer();
+    visitInCircle(circle_query, result);
+    return result;
+  }
+  
+  @Override
+  public int getInRect(Rect rect_query, ColliderBuffer result)
+  {
+    result.clear();
+    visitInRect(rect_query, result);
+    return result.size();
+  }
+  
+  @Override
+  public int getInCircle(Circle circle_query, ColliderBuffer result)
+  {
+    result.clear();
+    visitInCircle(circle_query, result);
+    return result.size();
+  }
+  
+  /**
+   * Search in circles of increasing size until the nearest colliders are
+   * known: managers that can order their search by distance should override
+   * this.
+   */
+  @Override
+  public int findNearest(NearestSearch search)
+  {
+    float max_distance = search.getMaxDistance(),
+          radius = Math.min(FIRST_SEARCH_RADIUS, max_distance);
+    while(true)
+    {
+      visitInCircle(search.getProbe(radius), search);
+      if(search.isSettled(radius))
+        return search.size();
+      radius = Math.min(radius * 2, max_distance);
+    }
+  }
+  
+  @Override
+  public void unregister(Collider c)
+  {
+    if(in_pass)
+      deferred_removals.add(c);
+    else
+      remove(c);
+  }
+  
+  @Override
+  public void generateCollisions()
+  {
+    in_pass = true;
+    try
+    {
+      contacts.beginPass();
+      generatePairs(contacts);
+      contacts.endPass();
+    }
+    finally
+    {
+      in_pass = false;
+    }
+    
+    // now that the pass is over the colliders can safely be removed
+    for(int i = 0; i < deferred_removals.size(); i++)
+      remove(deferred_removals.get(i));
+    deferred_removals.clear();
+  }
+  
+  @Override
+  public void dispose()
+  {
+    // override if need be
+  }
+  
+  /* INTERFACE */
+  
+  /**
+   * Generate boundary events, and report each overlapping pair of objects to
+   * the contact cache.
+   * 
+   * @param contacts the cache to which overlapping pairs should be reported.
+   */
+  protected abstract void generatePairs(ContactCache contacts);
+  
+  /**
+   * Bring the manager's index up to date with the colliders' current shapes,
+   * without generating any events. Pair generation starts by doing this.
+   */
+  protected void refresh()
+  {
+    // override if need be
+  }
+  
+  /**
+   * Stop tracking a collider. This is never called during a collision pass.
+   * 
+   * @param c the collider to remove, which may not be registered.
+   */
+  protected abstract void remove(Collider c);
+  
+  /* SUBROUTINES */
+  
+  protected final void checkBoundary(Collider c)
+  {
+    if(!c.getCircle().inside(boundary))
+      c.boundaryEvent(boundary);
+  }
+  
+  protected final void checkBoundary(ColliderStore store, int handle)
+  {
+    if(!store.inside(handle, boundary))
+      store.get(handle).boundaryEvent(boundary);
+  }
+}
@@ -0,0 +1,322 @@
+/*
+ Copyright (C) 2012 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.teutoburg.collision;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import wjd.math.Circle;
+import wjd.math.Rect;
+
+/**
+ * Hands the colliders to whichever of several broad-phases is currently the
+ * cheapest. The time each pass takes to find the overlapping pairs is
+ * measured, along with the number of colliders and of contacts per collider
+ * at the time. The pairs are only passed on to the contact cache once the
+ * clock has stopped, so the time the colliders spend handling their contacts
+ * isn't counted. Every so often the measurements are reviewed: any candidate
+ * never measured, or last measured in very different conditions, is tried
+ * out for a few passes, after which the cheapest candidate is kept.
+ *
+ * All the candidates report to the same contact cache, so switching from one
+ * to another doesn't generate any contact events.
+ *
+ * @author wdyce
+ * @since Jan 23, 2013
+ */
+public class AdaptiveCollisionManager extends ACollisionManager
+{
+  /* CONSTANTS */
+  // passes between two reviews of the measurements
+  private static final int REVIEW_INTERVAL = 120;
+  // passes spent measuring a candidate, the first of which isn't counted
+  private static final int TRIAL_LENGTH = 8;
+  // weight of each new measurement in the running average of the cost
+  private static final float SMOOTHING = 0.2f;
+  // relative change in conditions after which a measurement is out of date
+  private static final float STALE_CHANGE = 0.5f;
+  // a candidate must be this much cheaper than the current one to replace it
+  private static final float HYSTERESIS = 0.8f;
+
+  /* ATTRIBUTES */
+  // candidates, and the last measurements made with each
+  private final ECollisionBackend[] candidates;
+  private final float[] cost, sampled_n, sampled_density;
+  private final boolean[] measured;
+  // current broad-phase
+  private int current;
+  private ACollisionManager active;
+  private int passes_since_switch = 0;
+  // candidate being tried out, and the one to go back to
+  private int trial_from = -1;
+  private int passes = 0;
+  // registered objects, needed to migrate them from one candidate to another
+  private Collider[] objects = new Collider[64];
+  private int n_objects = 0;
+  private final Map<Collider, Integer> slots
+    = new IdentityHashMap<Collider, Integer>();
+  // pairs found during the pass being timed
+  private final PairRecorder recorder = new PairRecorder();
+  // switch decisions are reported here, if anywhere
+  private PrintStream log = null;
+
+  /* METHODS */
+
+  // constructors
+
+  public AdaptiveCollisionManager(Rect boundary_,
+                                  ECollisionBackend... candidates_)
+  {
+    super(boundary_);
+    if(candidates_.length == 0)
+      throw new IllegalArgumentException("No candidate broad-phase given");
+    candidates = candidates_.clone();
+    cost = new float[candidates.length];
+    sampled_n = new float[candidates.length];
+    sampled_density = new float[candidates.length];
+    measured = new boolean[candidates.length];
+
+    current = 0;
+    active = (ACollisionManager)candidates[0].create(boundary_);
+  }
+
+  // accessors
+
+  public ECollisionBackend getBackend()
+  {
+    return candidates[current];
+  }
+
+  // mutators
+
+  /**
+   * @param log_ where to report switch decisions, or null for nowhere, which
+   * is the default.
+   */
+  public void setLog(PrintStream log_)
+  {
+    this.log = log_;
+  }
+
+  @Override
+  public void setContactCache(ContactCache contacts_)
+  {
+    super.setContactCache(contacts_);
+    active.setContactCache(contacts_);
+  }
+
+  /* IMPLEMENTS -- ICOLLISIONMANAGER */
+
+  @Override
+  public void visitInRect(Rect area, IColliderVisitor visitor)
+  {
+    active.visitInRect(area, visitor);
+  }
+
+  @Override
+  public void visitInCircle(Circle circle_query, IColliderVisitor visitor)
+  {
+    active.visitInCircle(circle_query, visitor);
+  }
+
+  @Override
+  public int findNearest(NearestSearch search)
+  {
+    return active.findNearest(search);
+  }
+
+  @Override
+  public void register(Collider c)
+  {
+    if(n_objects == objects.length)
+      objects = Arrays.copyOf(objects, n_objects * 2);
+    slots.put(c, n_objects);
+    objects[n_objects++] = c;
+    active.register(c);
+  }
+
+  @Override
+  protected void remove(Collider c)
+  {
+    Integer slot = slots.remove(c);
+    if(slot == null)
+      return;
+
+    // the last object takes the place of the one removed
+    int last = --n_objects;
+    if(slot != last)
+    {
+      objects[slot] = objects[last];
+      slots.put(objects[slot], slot);
+    }
+    objects[last] = null;
+    active.remove(c);
+  }
+
+  @Override
+  protected void refresh()
+  {
+    active.refresh();
+  }
+
+  @Override
+  protected void generatePairs(ContactCache contacts)
+  {
+    // decide which broad-phase to use for this pass
+    review(contacts);
+
+    // generate pairs, timing how long it takes
+    recorder.clear();
+    long start = System.nanoTime();
+    active.generatePairs(recorder);
+    float elapsed = (System.nanoTime() - start);
+    recorder.replay(contacts);
+
+    // the first pass after a switch also pays for building the index
+    passes++;
+    if(passes_since_switch++ > 0)
+    {
+      cost[current] = measured[current]
+                    ? cost[current] + SMOOTHING*(elapsed - cost[current])
+                    : elapsed;
+      sampled_n[current] = n_objects;
+      sampled_density[current] = density(contacts);
+      measured[current] = true;
+    }
+  }
+
+  @Override
+  public void dispose()
+  {
+    active.dispose();
+  }
+
+  /* SUBROUTINES */
+
+  private float density(ContactCache contacts)
+  {
+    return (n_objects == 0) ? 0 : contacts.getNContacts() / (float)n_objects;
+  }
+
+  private static boolean changed(float before, float after, float floor)
+  {
+    return (Math.abs(after - before)
+            > STALE_CHANGE * Math.max(floor, Math.max(before, after)));
+  }
+
+  private boolean isStale(int candidate, float density)
+  {
+    return (!measured[candidate]
+            || changed(sampled_n[candidate], n_objects, 1.0f)
+            || changed(sampled_density[candidate], density, 1.0f));
+  }
+
+  private void review(ContactCache contacts)
+  {
+    // finish the current trial
+    if(trial_from >= 0)
+    {
+      if(passes_since_switch < TRIAL_LENGTH)
+        return;
+      int from = trial_from;
+      trial_from = -1;
+
+      // go back unless the candidate tried is clearly cheaper: the one we
+      // came from was being measured right up to the trial, so the two costs
+      // are compared even if conditions have drifted since
+      if(measured[from] && cost[current] >= cost[from] * HYSTERESIS)
+        switchTo(from, "after trying " + candidates[current]);
+      else
+        report("keeping " + candidates[current], "after trying it");
+      return;
+    }
+
+    // review the measurements now and again
+    if(passes % REVIEW_INTERVAL != 0 || passes == 0)
+      return;
+    float density = density(contacts);
+
+    // try out a candidate whose measurements are missing or out of date
+    for(int i = 0; i < candidates.length; i++)
+      if(i != current && isStale(i, density))
+      {
+        trial_from = current;
+        switchTo(i, "to measure it");
+        return;
+      }
+
+    // otherwise change to the cheapest
+    int best = cheapest(density);
+    if(best != current)
+      switchTo(best, "on review");
+  }
+
+  private int cheapest(float density)
+  {
+    // keep the current candidate unless another is clearly cheaper
+    int best = current;
+    float best_cost = cost[current] * HYSTERESIS;
+    for(int i = 0; i < candidates.length; i++)
+      if(i != current && measured[i] && !isStale(i, density)
+      && cost[i] < best_cost)
+      {
+        best = i;
+        best_cost = cost[i];
+      }
+    return best;
+  }
+
+  private void switchTo(int candidate, String reason)
+  {
+    report(candidates[current] + " -> " + candidates[candidate], reason);
+
+    // migrate the colliders, keeping the same contact cache
+    ACollisionManager next
+      = (ACollisionManager)candidates[candidate].create(boundary);
+    next.setContactCache(getContactCache());
+    for(int i = 0; i < n_objects; i++)
+      next.register(objects[i]);
+
+    active.dispose();
+    active = next;
+    current = candidate;
+    passes_since_switch = 0;
+  }
+
+  private void report(String change, String reason)
+  {
+    if(log == null)
+      return;
+
+    StringBuilder line = new StringBuilder("broad-phase ");
+    line.append(change).append(' ').append(reason)
+        .append(": pass ").append(passes)
+        .append(", ").append(n_objects).append(" colliders");
+    for(int i = 0; i < candidates.length; i++)
+    {
+      line.append(", ").append(candidates[i]).append(' ');
+      if(measured[i])
+        line.append(Math.round(cost[i] / 1000)).append("us at ")
+            .append(Math.round(sampled_n[i])).append('/')
+            .append(String.format("%.2f", sampled_density[i]));
+      else
+        line.append('?');
+    }
+    log.println(line);
+  }
+}
@@ -46,6 +46,9 @@ public abstract class Agent extends Collider implements IVisible, IDynamic
   protected boolean visible = true;
   // brain
   protected Map<String, Object> belief = new HashMap<String, Object>();
+  // separation
+  SeparationSolver solver = null;
+  int solver_slot = -1;
 
   /* METHODS */
   
@@ -141,6 +144,18 @@ public abstract class Agent extends Collider implements IVisible, IDynamic
     // override if need be
   }
   
+  /**
+   * Push the agent, the push being held back until the separation solver (if
+   * there is one) applies all the pushes of the current pass together.
+   */
+  protected void push(float x, float y)
+  {
+    if(solver != null)
+      solver.accumulate(solver_slot, x, y);
+    else
+      speed.add(x, y);
+  }
+  
   //----------------------------------------------------------------------------
   // SIZE
   //----------------------------------------------------------------------------
@@ -194,11 +209,12 @@ public abstract class Agent extends Collider implements IVisible, IDynamic
   @Override
   public void collisionEvent(Collider other, float overlap)
   {
+    // each contact is now only reported once per pass, rather than twice
     float push_multiplier 
-      = (other.getClass().equals(this.getClass())) ? 0.0005f : 0.0001f;
+      = (other.getClass() == getClass()) ? 0.001f : 0.0002f;
     
-      V2 push = c.centre.clone().sub(other.getCircle().centre)
-        .scale(overlap * push_multiplier);
-      speed.add(push);
+    V2 other_centre = other.getCircle().centre;
+    push((c.centre.x - other_centre.x) * overlap * push_multiplier,
+         (c.centre.y - other_centre.y) * overlap * push_multiplier);
   }
 }
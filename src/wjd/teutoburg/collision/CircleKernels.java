@@ -0,0 +1,83 @@
+/*
+ Copyright (C) 2012 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.teutoburg.collision;
+
+/**
+ * Tests of one circle against a whole block of circles packed into columns,
+ * such as those of a ColliderStore. Each test is split into a first loop
+ * with no branches and no method calls, doing the same arithmetic on every
+ * element, which the JIT compiler can turn into SIMD instructions, and a
+ * second loop picking out the few elements that passed.
+ *
+ * @author wdyce
+ * @since Jan 27, 2013
+ */
+public final class CircleKernels
+{
+  /* METHODS */
+
+  // constructors
+
+  private CircleKernels()
+  {
+    // static methods only
+  }
+
+  // accessors
+
+  /**
+   * Find which of the circles [from, to) touch the query circle.
+   *
+   * @param scratch at least to - from floats, overwritten.
+   * @param hits receives the indices of the circles touching the query, and
+   * must have room for to - from of them.
+   * @return the number of indices written to hits.
+   */
+  public static int touching(float qx, float qy, float qr,
+                             float[] x, float[] y, float[] radius,
+                             int from, int to, float[] scratch, int[] hits)
+  {
+    // depth of the overlap, squared and signed: positive if touching
+    for(int j = from, k = 0; j < to; j++, k++)
+    {
+      float dx = x[j] - qx, dy = y[j] - qy, r = radius[j] + qr;
+      scratch[k] = r*r - (dx*dx + dy*dy);
+    }
+
+    // keep those touching
+    int n_hits = 0;
+    for(int j = from, k = 0; j < to; j++, k++)
+      if(scratch[k] > 0)
+        hits[n_hits++] = j;
+    return n_hits;
+  }
+
+  /**
+   * Squared distance from a point to each of the points [from, to).
+   *
+   * @param out receives the distance of point j at out[j - from].
+   */
+  public static void distance2(float qx, float qy, float[] x, float[] y,
+                               int from, int to, float[] out)
+  {
+    for(int j = from, k = 0; j < to; j++, k++)
+    {
+      float dx = x[j] - qx, dy = y[j] - qy;
+      out[k] = dx*dx + dy*dy;
+    }
+  }
+}
@@ -64,4 +64,33 @@ public abstract class Collider
   public abstract void  boundaryEvent(Rect boundary);
 
   public abstract void  collisionEvent(Collider a, float overlap);
+  
+  /* CONTACTS */
+  
+  /**
+   * Called on the first collision pass during which this object overlaps the
+   * other. By default this is treated as any other collision.
+   */
+  public void contactBegin(Collider other, float overlap)
+  {
+    collisionEvent(other, overlap);
+  }
+  
+  /**
+   * Called on each subsequent collision pass during which this object still
+   * overlaps the other. By default this is treated as any other collision.
+   */
+  public void contactPersist(Collider other, float overlap)
+  {
+    collisionEvent(other, overlap);
+  }
+  
+  /**
+   * Called on the first collision pass during which this object no longer
+   * overlaps the other.
+   */
+  public void contactEnd(Collider other)
+  {
+    // override if need be
+  }
 }
@@ -0,0 +1,117 @@
+/*
+ Copyright (C) 2012 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.teutoburg.collision;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A growable array of colliders into which query results can be collected.
+ * Each caller keeps its own buffer and reuses it from one query to the next,
+ * so that queries neither allocate nor interfere with each other.
+ *
+ * @author wdyce
+ * @since Jan 14, 2013
+ */
+public class ColliderBuffer implements IColliderVisitor, Iterable<Collider>
+{
+  /* ATTRIBUTES */
+  private Collider[] items;
+  private int size = 0;
+  
+  /* METHODS */
+  
+  // constructors
+  
+  public ColliderBuffer()
+  {
+    this(16);
+  }
+  
+  public ColliderBuffer(int capacity)
+  {
+    items = new Collider[Math.max(capacity, 1)];
+  }
+  
+  // accessors
+  
+  public int size()
+  {
+    return size;
+  }
+  
+  public Collider get(int i)
+  {
+    return (i >= 0 && i < size) ? items[i] : null;
+  }
+  
+  // mutators
+  
+  public void clear()
+  {
+    // don't keep references to the previous results alive
+    for(int i = 0; i < size; i++)
+      items[i] = null;
+    size = 0;
+  }
+  
+  /* IMPLEMENTS -- ICOLLIDERVISITOR */
+  
+  @Override
+  public boolean visit(Collider c)
+  {
+    if(size == items.length)
+    {
+      Collider[] grown = new Collider[size * 2];
+      System.arraycopy(items, 0, grown, 0, size);
+      items = grown;
+    }
+    items[size++] = c;
+    return true;
+  }
+  
+  /* IMPLEMENTS -- ITERABLE */
+  
+  @Override
+  public Iterator<Collider> iterator()
+  {
+    return new Iterator<Collider>()
+    {
+      private int i = 0;
+      
+      @Override
+      public boolean hasNext()
+      {
+        return (i < size);
+      }
+
+      @Override
+      public Collider next()
+      {
+        if(i >= size)
+          throw new NoSuchElementException();
+        return items[i++];
+      }
+
+      @Override
+      public void remove()
+      {
+        throw new UnsupportedOperationException("Remove is not supported.");
+      }
+    };
+  }
+}
@@ -0,0 +1,295 @@
+/*
+ Copyright (C) 2012 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.teutoburg.collision;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import wjd.math.Circle;
+import wjd.math.Rect;
+
+/**
+ * Packed copy of the shape of each registered collider, kept as parallel
+ * columns of primitives. Broad-phase loops can then run over contiguous
+ * arrays rather than chasing Circle and V2 references.
+ *
+ * Each Collider's Circle remains the copy that game code moves around: the
+ * columns are refreshed from it by pull(), at the start of each collision
+ * pass.
+ *
+ * Columns are indexed by slot. Removing a collider only clears the
+ * FLAG_ACTIVE flag of its slot, so the slots stay valid until compact() packs
+ * the surviving colliders together. A collider's handle, unlike its slot,
+ * never changes for as long as it is in the store.
+ *
+ * @author wdyce
+ * @since Jan 15, 2013
+ */
+public class ColliderStore
+{
+  /* CONSTANTS */
+  public static final int FLAG_ACTIVE = 1;
+
+  /* ATTRIBUTES */
+  // columns, indexed by slot
+  float[] x, y, radius;
+  int[] flags;
+  private Collider[] owner;
+  private int[] handle_of;
+  private int size = 0, n_removed = 0;
+  // handles
+  private final Map<Collider, Integer> handles 
+    = new IdentityHashMap<Collider, Integer>();
+  private int[] slot_of;
+  private int[] free_handles;
+  private int n_handles = 0, n_free_handles = 0;
+
+  /* METHODS */
+
+  // constructors
+
+  public ColliderStore()
+  {
+    this(64);
+  }
+
+  public ColliderStore(int capacity)
+  {
+    capacity = Math.max(capacity, 1);
+    x = new float[capacity];
+    y = new float[capacity];
+    radius = new float[capacity];
+    flags = new int[capacity];
+    owner = new Collider[capacity];
+    handle_of = new int[capacity];
+    slot_of = new int[capacity];
+    free_handles = new int[capacity];
+  }
+
+  // accessors
+
+  /**
+   * @return the number of slots in use, including those of removed colliders
+   * which haven't been compacted yet.
+   */
+  public int size()
+  {
+    return size;
+  }
+
+  public int getNRemoved()
+  {
+    return n_removed;
+  }
+
+  /**
+   * @return the handle of the collider, or -1 if it isn't in the store.
+   */
+  public int getHandle(Collider c)
+  {
+    Integer handle = handles.get(c);
+    return (handle == null) ? -1 : handle;
+  }
+
+  public int getSlot(int handle)
+  {
+    return slot_of[handle];
+  }
+
+  public Collider get(int slot)
+  {
+    return owner[slot];
+  }
+
+  public boolean isActive(int slot)
+  {
+    return ((flags[slot] & FLAG_ACTIVE) != 0);
+  }
+
+  public float getX(int slot)
+  {
+    return x[slot];
+  }
+
+  public float getY(int slot)
+  {
+    return y[slot];
+  }
+
+  public float getRadius(int slot)
+  {
+    return radius[slot];
+  }
+
+  public boolean hasFlag(int slot, int flag)
+  {
+    return ((flags[slot] & flag) != 0);
+  }
+
+  /**
+   * How much do two stored circles overlap?
+   *
+   * @return the depth of the overlap, or 0 if the circles don't touch.
+   */
+  public float getOverlap(int a, int b)
+  {
+    float dx = x[a] - x[b], dy = y[a] - y[b], r = radius[a] + radius[b],
+          dist2 = dx*dx + dy*dy;
+    // only take the square root of pairs which actually touch
+    return (dist2 < r*r) ? r - (float)Math.sqrt(dist2) : 0.0f;
+  }
+
+  public boolean inside(int slot, Rect area)
+  {
+    float r = radius[slot];
+    return (x[slot] - r >= area.x && x[slot] + r <= area.endx()
+          && y[slot] - r >= area.y && y[slot] + r <= area.endy());
+  }
+
+  // mutators
+
+  /**
+   * Add a collider to the store, at the end of the slots in use.
+   *
+   * @param c the collider to add, which must not already be in the store.
+   * @return the handle of the collider.
+   */
+  public int add(Collider c)
+  {
+    if(size == owner.length)
+    {
+      int capacity = size * 2;
+      x = Arrays.copyOf(x, capacity);
+      y = Arrays.copyOf(y, capacity);
+      radius = Arrays.copyOf(radius, capacity);
+      flags = Arrays.copyOf(flags, capacity);
+      owner = Arrays.copyOf(owner, capacity);
+      handle_of = Arrays.copyOf(handle_of, capacity);
+    }
+
+    // recycle the handle of a collider that was removed if there is one
+    int handle;
+    if(n_free_handles > 0)
+      handle = free_handles[--n_free_handles];
+    else
+    {
+      if(n_handles == slot_of.length)
+      {
+        slot_of = Arrays.copyOf(slot_of, n_handles * 2);
+        free_handles = Arrays.copyOf(free_handles, n_handles * 2);
+      }
+      handle = n_handles++;
+    }
+    handles.put(c, handle);
+
+    int slot = size++;
+    slot_of[handle] = slot;
+    handle_of[slot] = handle;
+    owner[slot] = c;
+    flags[slot] = FLAG_ACTIVE;
+    pull(slot);
+    return handle;
+  }
+
+  /**
+   * Remove a collider from the store. Its slot is only freed by compact().
+   *
+   * @param handle the handle of the collider to remove.
+   */
+  public void remove(int handle)
+  {
+    int slot = slot_of[handle];
+    handles.remove(owner[slot]);
+    flags[slot] &= ~FLAG_ACTIVE;
+    free_handles[n_free_handles++] = handle;
+    n_removed++;
+  }
+
+  /**
+   * Compact the store if at least a quarter of its slots have been freed.
+   *
+   * @return true if any slot has changed.
+   */
+  public boolean compactIfSparse()
+  {
+    return (4*n_removed >= size && compact());
+  }
+
+  /**
+   * Pack the remaining colliders into the first slots, preserving their
+   * order, so that the slots of removed colliders are freed.
+   *
+   * @return true if any slot has changed.
+   */
+  public boolean compact()
+  {
+    if(n_removed == 0)
+      return false;
+
+    int kept = 0;
+    for(int slot = 0; slot < size; slot++)
+    {
+      if((flags[slot] & FLAG_ACTIVE) == 0)
+        continue;
+      if(slot != kept)
+      {
+        x[kept] = x[slot];
+        y[kept] = y[slot];
+        radius[kept] = radius[slot];
+        flags[kept] = flags[slot];
+        owner[kept] = owner[slot];
+        handle_of[kept] = handle_of[slot];
+        slot_of[handle_of[kept]] = kept;
+      }
+      kept++;
+    }
+
+    // don't keep the removed colliders alive
+    for(int slot = kept; slot < size; slot++)
+      owner[slot] = null;
+    size = kept;
+    n_removed = 0;
+    return true;
+  }
+
+  public void setFlag(int slot, int flag, boolean value)
+  {
+    if(value)
+      flags[slot] |= flag;
+    else
+      flags[slot] &= ~flag;
+  }
+
+  /**
+   * Copy the current position and radius of every active collider into the
+   * columns.
+   */
+  public void pull()
+  {
+    for(int slot = 0; slot < size; slot++)
+      if((flags[slot] & FLAG_ACTIVE) != 0)
+        pull(slot);
+  }
+
+  public void pull(int slot)
+  {
+    Circle c = owner[slot].getCircle();
+    x[slot] = c.centre.x;
+    y[slot] = c.centre.y;
+    radius[slot] = c.radius;
+  }
+}
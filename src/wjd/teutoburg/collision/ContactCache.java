@@ -0,0 +1,180 @@
+/*
+ Copyright (C) 2012 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.teutoburg.collision;
+
+/**
+ * Remembers which pairs of colliders were in contact during the previous
+ * collision pass, so as to turn the raw overlaps reported by a broad-phase
+ * into contactBegin, contactPersist and contactEnd events. A pair reported
+ * several times during the same pass only generates a single event.
+ *
+ * @author wdyce
+ * @since Jan 11, 2013
+ */
+public class ContactCache
+{
+  /* NESTING */
+  private static class Contact
+  {
+    Collider a, b;
+    int pass;
+    Contact next;
+  }
+
+  /* ATTRIBUTES */
+  private Contact[] buckets = new Contact[256];
+  private Contact[] live = new Contact[128];
+  private int n_live = 0;
+  private Contact pool = null;
+  private int pass = 0;
+
+  /* METHODS */
+
+  // accessors
+
+  public int getNContacts()
+  {
+    return n_live;
+  }
+
+  // mutators
+
+  /**
+   * Start a new collision pass: any contact not touched before the next call
+   * to endPass() will be considered to have ended.
+   */
+  public void beginPass()
+  {
+    pass++;
+  }
+
+  /**
+   * Report that two colliders overlap during the current pass.
+   *
+   * @param a the first collider.
+   * @param b the second collider, the order of the two being irrelevant.
+   * @param overlap by how much the colliders overlap.
+   */
+  public void touch(Collider a, Collider b, float overlap)
+  {
+    // has the pair already been seen?
+    int bucket = bucket(a, b);
+    for(Contact c = buckets[bucket]; c != null; c = c.next)
+      if((c.a == a && c.b == b) || (c.a == b && c.b == a))
+      {
+        // ignore duplicates within the same pass
+        if(c.pass == pass)
+          return;
+        c.pass = pass;
+        a.contactPersist(b, overlap);
+        b.contactPersist(a, overlap);
+        return;
+      }
+
+    // this is a new contact
+    if(n_live == live.length)
+    {
+      grow();
+      bucket = bucket(a, b);
+    }
+    Contact c = (pool != null) ? pool : new Contact();
+    pool = c.next;
+    c.a = a;
+    c.b = b;
+    c.pass = pass;
+    c.next = buckets[bucket];
+    buckets[bucket] = c;
+    live[n_live++] = c;
+    a.contactBegin(b, overlap);
+    b.contactBegin(a, overlap);
+  }
+
+  /**
+   * End the current pass, generating contactEnd events for every pair that
+   * was not touched during it.
+   */
+  public void endPass()
+  {
+    int i = 0;
+    while(i < n_live)
+    {
+      Contact c = live[i];
+      if(c.pass == pass)
+        i++;
+      else
+      {
+        // the last contact takes the place of the one that ended
+        live[i] = live[--n_live];
+        live[n_live] = null;
+        Collider a = c.a, b = c.b;
+        release(c);
+        a.contactEnd(b);
+        b.contactEnd(a);
+      }
+    }
+  }
+
+  /* SUBROUTINES */
+
+  private int bucket(Collider a, Collider b)
+  {
+    // symmetric, so that (a, b) and (b, a) end up in the same bucket
+    int h = (System.identityHashCode(a) ^ System.identityHashCode(b))
+            * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & (buckets.length - 1);
+  }
+
+  private void release(Contact dead)
+  {
+    // unlink from its bucket
+    int bucket = bucket(dead.a, dead.b);
+    if(buckets[bucket] == dead)
+      buckets[bucket] = dead.next;
+    else
+    {
+      Contact c = buckets[bucket];
+      while(c.next != dead)
+        c = c.next;
+      c.next = dead.next;
+    }
+
+    // recycle
+    dead.a = dead.b = null;
+    dead.next = pool;
+    pool = dead;
+  }
+
+  private void grow()
+  {
+    Contact[] grown = new Contact[live.length * 2];
+    System.arraycopy(live, 0, grown, 0, n_live);
+    live = grown;
+
+    // keep the average chain length below 1
+    if(live.length > buckets.length)
+    {
+      buckets = new Contact[live.length];
+      for(int i = 0; i < n_live; i++)
+      {
+        Contact c = live[i];
+        int bucket = bucket(c.a, c.b);
+        c.next = buckets[bucket];
+        buckets[bucket] = c;
+      }
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ Copyright (C) 2012 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.teutoburg.collision;
+
+import wjd.math.Rect;
+import wjd.teutoburg.quadtree.QTCollisionManager;
+
+/**
+ * The different broad-phase implementations which can be plugged into a
+ * simulation.
+ *
+ * @author wdyce
+ * @since Jan 9, 2013
+ */
+public enum ECollisionBackend
+{
+  /* IMPLEMENTATIONS */
+  
+  LIST
+  {
+    @Override
+    public ICollisionManager create(Rect boundary)
+    {
+      return new ListCollisionManager(boundary);
+    }
+  },
+  
+  SPATIAL_HASH
+  {
+    @Override
+    public ICollisionManager create(Rect boundary)
+    {
+      return new SpatialHashCollisionManager(boundary);
+    }
+  },
+  
+  PARALLEL_SPATIAL_HASH
+  {
+    @Override
+    public ICollisionManager create(Rect boundary)
+    {
+      SpatialHashCollisionManager manager 
+        = new SpatialHashCollisionManager(boundary);
+      manager.setParallel(true);
+      return manager;
+    }
+  },
+  
+  HIERARCHICAL_GRID
+  {
+    @Override
+    public ICollisionManager create(Rect boundary)
+    {
+      return new HierarchicalGridCollisionManager(boundary);
+    }
+  },
+  
+  QUADTREE
+  {
+    @Override
+    public ICollisionManager create(Rect boundary)
+    {
+      return new QTCollisionManager(boundary);
+    }
+  },
+  
+  SWEEP_AND_PRUNE
+  {
+    @Override
+    public ICollisionManager create(Rect boundary)
+    {
+      return new SweepAndPruneCollisionManager(boundary);
+    }
+  },
+  
+  ADAPTIVE
+  {
+    @Override
+    public ICollisionManager create(Rect boundary)
+    {
+      return new AdaptiveCollisionManager(boundary, 
+                                          LIST, SPATIAL_HASH, QUADTREE);
+    }
+  };
+  
+  /* INTERFACE */
+  
+  public abstract ICollisionManager create(Rect boundary);
+}
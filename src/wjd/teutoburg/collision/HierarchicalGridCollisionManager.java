@@ -0,0 +1,296 @@
+/*
+ Copyright (C) 2012 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.teutoburg.collision;
+
+import java.util.Arrays;
+import wjd.math.Circle;
+import wjd.math.Rect;
+import wjd.teutoburg.simulation.Tile;
+
+/**
+ * Broad-phase backed by a stack of grids, each level's cells being twice the
+ * size of the level below's, the smallest being the size of a Tile. Each
+ * collider is binned into a single cell: the one containing its centre, on
+ * the lowest level whose cells are at least as wide as the collider. Small
+ * and large colliders thus never crowd into the same cells.
+ *
+ * Two colliders on the same level can only touch if their cells are
+ * neighbours. A collider can only touch one on a higher level if its centre
+ * is in a neighbour of that one's cell, on that level. So each collider is
+ * tested against the 3x3 cells around it on its own level and on every
+ * occupied level above.
+ *
+ * Like the spatial hash, the grids are rebuilt from scratch with a counting
+ * sort at each pass, into a single table hashed on level and cell.
+ *
+ * @author wdyce
+ * @since Jan 25, 2013
+ */
+public class HierarchicalGridCollisionManager extends ACollisionManager
+{
+  /* CONSTANTS */
+  private static final int N_BUCKETS = 4096; // must be a power of 2
+  private static final int BUCKET_MASK = N_BUCKETS - 1;
+  private static final int N_LEVELS = 16;
+  private static final float[] CELL_SIZE = new float[N_LEVELS],
+                               INV_CELL_SIZE = new float[N_LEVELS];
+  static
+  {
+    for(int level = 0; level < N_LEVELS; level++)
+    {
+      CELL_SIZE[level] = Tile.SIZE.x * (1 << level);
+      INV_CELL_SIZE[level] = 1.0f / CELL_SIZE[level];
+    }
+  }
+
+  /* ATTRIBUTES */
+  // registered objects, and the cell each one was binned into
+  private final ColliderStore objects = new ColliderStore();
+  private int[] object_level = new int[64], object_cx = new int[64],
+                object_cy = new int[64];
+  // objects registered since the table was last rebuilt
+  private int n_binned = 0;
+  // one bit per level with at least one object
+  private int occupied_levels = 0;
+  // hash table: bucket b holds the objects entry_id[start[b] .. start[b+1])
+  private final int[] bucket_start = new int[N_BUCKETS + 1];
+  private int[] entry_id = new int[64];
+  // overlapping pairs found during the current pass
+  private final PairBuffer pairs = new PairBuffer();
+
+  /* METHODS */
+
+  // constructors
+
+  public HierarchicalGridCollisionManager(Rect boundary_)
+  {
+    super(boundary_);
+  }
+
+  // accessors
+
+  private static int hash(int level, int cx, int cy)
+  {
+    return ((cx * 73856093) ^ (cy * 19349663) ^ (level * 83492791))
+           & BUCKET_MASK;
+  }
+
+  private static int cell(int level, float x)
+  {
+    return (int)Math.floor(x * INV_CELL_SIZE[level]);
+  }
+
+  private static int levelFor(float radius)
+  {
+    int level = 0;
+    while(level < N_LEVELS - 1 && CELL_SIZE[level] < 2*radius)
+      level++;
+    return level;
+  }
+
+  /* IMPLEMENTS -- ICOLLISIONMANAGER */
+
+  @Override
+  public void visitInRect(Rect area, IColliderVisitor visitor)
+  {
+    visitLevels(area.x, area.y, area.endx(), area.endy(), area, null,
+                visitor);
+  }
+
+  @Override
+  public void visitInCircle(Circle circle_query, IColliderVisitor visitor)
+  {
+    float x = circle_query.centre.x, y = circle_query.centre.y,
+          r = circle_query.radius;
+    visitLevels(x - r, y - r, x + r, y + r, null, circle_query, visitor);
+  }
+
+  @Override
+  public void register(Collider c)
+  {
+    objects.add(c);
+  }
+
+  @Override
+  protected void remove(Collider c)
+  {
+    // the table still refers to the slot, which is skipped until compacted
+    int handle = objects.getHandle(c);
+    if(handle >= 0)
+      objects.remove(handle);
+  }
+
+  @Override
+  protected void refresh()
+  {
+    // objects have moved since the last call, so re-bin them
+    objects.compactIfSparse();
+    objects.pull();
+    rebuild();
+  }
+
+  @Override
+  protected void generatePairs(ContactCache contacts)
+  {
+    refresh();
+
+    // check collisions with boundary
+    int n_objects = objects.size();
+    for(int i = 0; i < n_objects; i++)
+      if(objects.isActive(i))
+        checkBoundary(objects, i);
+
+    // test each object against its neighbours on its level and those above
+    pairs.clear();
+    for(int i = 0; i < n_objects; i++)
+    {
+      if(!objects.isActive(i))
+        continue;
+      int level = object_level[i];
+      scanNeighbours(i, level, object_cx[i], object_cy[i]);
+      for(int above = level + 1; above < N_LEVELS; above++)
+        if((occupied_levels & (1 << above)) != 0)
+          scanNeighbours(i, above, cell(above, objects.x[i]),
+                                   cell(above, objects.y[i]));
+    }
+
+    // report the pairs in a canonical order, which doesn't depend on the hash
+    Arrays.sort(pairs.keys, 0, pairs.size);
+    for(int p = 0; p < pairs.size; p++)
+    {
+      long key = pairs.keys[p];
+      int id_a = (int)(key >>> 32), id_b = (int)key;
+      contacts.touch(objects.get(id_a), objects.get(id_b),
+                     objects.getOverlap(id_a, id_b));
+    }
+  }
+
+  /* SUBROUTINES */
+
+  private void scanNeighbours(int i, int level, int cx, int cy)
+  {
+    for(int ny = cy - 1; ny <= cy + 1; ny++)
+    for(int nx = cx - 1; nx <= cx + 1; nx++)
+    {
+      int b = hash(level, nx, ny);
+      for(int e = bucket_start[b]; e < bucket_start[b+1]; e++)
+      {
+        // different cells can share a bucket, and on its own level an object
+        // meets each neighbour twice, so only keep the first meeting
+        int j = entry_id[e];
+        if(object_cx[j] != nx || object_cy[j] != ny
+        || object_level[j] != level
+        || (level == object_level[i] && j <= i))
+          continue;
+
+        if(objects.getOverlap(i, j) > 0)
+          pairs.add(i, j);
+      }
+    }
+  }
+
+  private void visitLevels(float x0, float y0, float x1, float y1,
+                           Rect area, Circle circle, IColliderVisitor visitor)
+  {
+    for(int level = 0; level < N_LEVELS; level++)
+    {
+      if((occupied_levels & (1 << level)) == 0)
+        continue;
+
+      // centres can be up to half a cell outside the query's bounding box
+      float margin = CELL_SIZE[level] * 0.5f;
+      int min_cx = cell(level, x0 - margin), max_cx = cell(level, x1 + margin),
+          min_cy = cell(level, y0 - margin), max_cy = cell(level, y1 + margin);
+      for(int cy = min_cy; cy <= max_cy; cy++)
+      for(int cx = min_cx; cx <= max_cx; cx++)
+      {
+        int b = hash(level, cx, cy);
+        for(int e = bucket_start[b]; e < bucket_start[b+1]; e++)
+        {
+          int id = entry_id[e];
+          if(object_cx[id] != cx || object_cy[id] != cy
+          || object_level[id] != level || !objects.isActive(id))
+            continue;
+
+          Collider o = objects.get(id);
+          Circle c = o.getCircle();
+          if((circle == null ? c.collides(area) : circle.collides(c))
+          && !visitor.visit(o))
+            return;
+        }
+      }
+    }
+
+    // objects registered since the last rebuild aren't in the table yet
+    int n_objects = objects.size();
+    for(int i = n_binned; i < n_objects; i++)
+    {
+      Collider o = objects.get(i);
+      if(objects.isActive(i)
+      && (circle == null ? o.getCircle().collides(area)
+                         : circle.collides(o.getCircle()))
+      && !visitor.visit(o))
+        return;
+    }
+  }
+
+  private void rebuild()
+  {
+    int n_objects = objects.size();
+    n_binned = n_objects;
+    if(n_objects > object_level.length)
+    {
+      int capacity = Math.max(n_objects, object_level.length * 2);
+      object_level = new int[capacity];
+      object_cx = new int[capacity];
+      object_cy = new int[capacity];
+      entry_id = new int[capacity];
+    }
+
+    // choose each object's cell, counting the objects in each bucket
+    Arrays.fill(bucket_start, 0);
+    occupied_levels = 0;
+    int n_entries = 0;
+    for(int i = 0; i < n_objects; i++)
+    {
+      if(!objects.isActive(i))
+        continue;
+      int level = levelFor(objects.radius[i]);
+      object_level[i] = level;
+      object_cx[i] = cell(level, objects.x[i]);
+      object_cy[i] = cell(level, objects.y[i]);
+      occupied_levels |= (1 << level);
+      bucket_start[hash(level, object_cx[i], object_cy[i]) + 1]++;
+      n_entries++;
+    }
+
+    // prefix sum: bucket b now starts where bucket b-1 ends
+    for(int b = 0; b < N_BUCKETS; b++)
+      bucket_start[b+1] += bucket_start[b];
+
+    // scatter the objects into their buckets, using the start of the next
+    // bucket as a write cursor which will end up at the start of this one
+    for(int i = n_objects - 1; i >= 0; i--)
+      if(objects.isActive(i))
+        entry_id[--bucket_start[
+          hash(object_level[i], object_cx[i], object_cy[i]) + 1]] = i;
+
+    // the cursor for bucket b has now wound back to its start: shift down
+    System.arraycopy(bucket_start, 1, bucket_start, 0, N_BUCKETS);
+    bucket_start[N_BUCKETS] = n_entries;
+  }
+}
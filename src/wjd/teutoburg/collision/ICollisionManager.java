@@ -18,7 +18,6 @@ package wjd.teutoburg.collision;
 
 import wjd.math.Circle;
 import wjd.math.Rect;
-import wjd.math.V2;
 
 /**
  *
@@ -33,7 +32,56 @@ public interface ICollisionManager
   
   public Iterable<Collider> getInCircle(Circle circle_query);
   
+  /**
+   * Pass each collider touching the rectangle to the visitor, without 
+   * allocating anything. Queries can be nested and run concurrently.
+   */
+  public void visitInRect(Rect rect_query, IColliderVisitor visitor);
+  
+  /**
+   * Pass each collider touching the circle to the visitor, without allocating
+   * anything. Queries can be nested and run concurrently.
+   */
+  public void visitInCircle(Circle circle_query, IColliderVisitor visitor);
+  
+  /**
+   * Replace the contents of the caller's buffer with the colliders touching
+   * the rectangle.
+   * 
+   * @return the number of colliders found.
+   */
+  public int getInRect(Rect rect_query, ColliderBuffer result);
+  
+  /**
+   * Replace the contents of the caller's buffer with the colliders touching
+   * the circle.
+   * 
+   * @return the number of colliders found.
+   */
+  public int getInCircle(Circle circle_query, ColliderBuffer result);
+  
+  /**
+   * Find the colliders nearest to the centre of the search, which should have
+   * been reset beforehand.
+   * 
+   * @return the number of colliders found.
+   */
+  public int findNearest(NearestSearch search);
+  
   public void register(Collider p);
+  
+  /**
+   * Stop tracking a collider, typically one that has been destroyed. If this
+   * is called during generateCollisions() the collider is only removed once
+   * every event of the current pass has been generated.
+   */
+  public void unregister(Collider p);
 
   public void generateCollisions();
+  
+  /**
+   * Release anything the manager holds on to outside of the heap, such as
+   * worker threads. The manager should not be used afterwards.
+   */
+  public void dispose();
 }
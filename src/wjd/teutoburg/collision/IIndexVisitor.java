@@ -0,0 +1,35 @@
+/*
+ Copyright (C) 2012 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.teutoburg.collision;
+
+/**
+ * Receives the results of a query on colliders known only by their index in
+ * an OffHeapColliderStore, one index at a time.
+ *
+ * @author wdyce
+ * @since Jan 26, 2013
+ */
+public interface IIndexVisitor 
+{
+  /* INTERFACE */
+  
+  /**
+   * @param id the index of a collider matching the query.
+   * @return true to carry on with the query, false to stop it early.
+   */
+  public boolean visit(int id);
+}
@@ -0,0 +1,36 @@
+/*
+ Copyright (C) 2012 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.teutoburg.collision;
+
+/**
+ * Receives the overlapping pairs found among colliders known only by their
+ * index in an OffHeapColliderStore.
+ *
+ * @author wdyce
+ * @since Jan 26, 2013
+ */
+public interface IPairVisitor 
+{
+  /* INTERFACE */
+  
+  /**
+   * @param a the index of the first collider, always smaller than b.
+   * @param b the index of the second collider.
+   * @param overlap by how much the colliders overlap.
+   */
+  public void visit(int a, int b, float overlap);
+}
@@ -16,24 +16,21 @@
  */
 package wjd.teutoburg.collision;
 
-import java.util.LinkedList;
-import java.util.List;
 import wjd.math.Circle;
 import wjd.math.Rect;
-import wjd.math.V2;
 
 /**
  *
  * @author wdyce
  * @since Dec 11, 2012
  */
-public class ListCollisionManager implements ICollisionManager 
+public class ListCollisionManager extends ACollisionManager 
 {
   /* ATTRIBUTES */
-  private final List<Collider> objects = new LinkedList<Collider>(),
-                              query_result = new LinkedList<Collider>();
-  private final V2 collision_point = new V2();
-  private final Rect boundary, bounding_rect = new Rect();
+  private final ColliderStore objects = new ColliderStore();
+  // results of the block tests
+  private float[] scratch = new float[64];
+  private int[] hits = new int[64];
   
   /* METHODS */
 
@@ -41,7 +38,7 @@ public class ListCollisionManager implements ICollisionManager
   
   public ListCollisionManager(Rect boundary_)
   {
-    this.boundary = boundary_;
+    super(boundary_);
   }
 
   // accessors
@@ -51,25 +48,29 @@ public class ListCollisionManager implements ICollisionManager
   /* IMPLEMENTS -- IPHYSICSMANAGER */
   
   @Override
-  public Iterable<Collider> getInRect(Rect area)
+  public void visitInRect(Rect area, IColliderVisitor visitor)
   {
-    query_result.clear();
-    for(Collider c : objects)
+    int n_objects = objects.size();
+    for(int i = 0; i < n_objects; i++)
     {
-      if(c.getCircle().collides(area))
-        query_result.add(c);
+      Collider c = objects.get(i);
+      if(objects.isActive(i) && c.getCircle().collides(area) 
+      && !visitor.visit(c))
+        return;
     }
-    return query_result;
   }
 
   @Override
-  public Iterable<Collider> getInCircle(Circle circle_query)
+  public void visitInCircle(Circle circle_query, IColliderVisitor visitor)
   {
-    query_result.clear();
-    for(Collider c : objects)
-      if(circle_query.collides(c.getCircle()))
-        query_result.add(c);
-    return query_result;
+    int n_objects = objects.size();
+    for(int i = 0; i < n_objects; i++)
+    {
+      Collider c = objects.get(i);
+      if(objects.isActive(i) && circle_query.collides(c.getCircle()) 
+      && !visitor.visit(c))
+        return;
+    }
   }
 
   @Override
@@ -77,25 +78,54 @@ public class ListCollisionManager implements ICollisionManager
   {
     objects.add(c);
   }
+  
+  @Override
+  protected void remove(Collider c)
+  {
+    int handle = objects.getHandle(c);
+    if(handle >= 0)
+      objects.remove(handle);
+  }
 
   @Override
-  public void generateCollisions()
+  protected void refresh()
+  {
+    // objects have moved since the last call, so refresh their shapes
+    objects.compactIfSparse();
+    objects.pull();
+  }
+  
+  @Override
+  protected void generatePairs(ContactCache contacts)
   {
-    for(Collider a : objects)
+    refresh();
+    
+    int n_objects = objects.size();
+    if(n_objects > hits.length)
     {
+      scratch = new float[n_objects];
+      hits = new int[n_objects];
+    }
+    
+    for(int i = 0; i < n_objects; i++)
+    {
+      if(!objects.isActive(i))
+        continue;
+      
       // check collisions with boundary
-      if(!a.getCircle().inside(boundary))
-        a.boundaryEvent(boundary);
+      checkBoundary(objects, i);
       
-      // check collisions between pairs of objects
-      float overlap;
-      for(Collider b : objects)
-        if(a != b && (overlap = a.getOverlap(b)) > 0)
-        {
-          a.collisionEvent(b, overlap);
-          b.collisionEvent(a, overlap);
-        }
+      // check collisions against all the following objects in one block
+      int n_hits = CircleKernels.touching(objects.x[i], objects.y[i], 
+                      objects.radius[i], objects.x, objects.y, objects.radius, 
+                      i + 1, n_objects, scratch, hits);
+      for(int h = 0; h < n_hits; h++)
+      {
+        int j = hits[h];
+        float overlap;
+        if(objects.isActive(j) && (overlap = objects.getOverlap(i, j)) > 0)
+          contacts.touch(objects.get(i), objects.get(j), overlap);
+      }
     }
-      
   }
 }
@@ -0,0 +1,171 @@
+/*
+ Copyright (C) 2012 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.teutoburg.collision;
+
+import wjd.math.Circle;
+import wjd.math.V2;
+
+/**
+ * The state of a search for the k colliders whose centres are nearest to a
+ * point, among those accepted by a filter and no further than a maximum
+ * distance. Each caller keeps its own search and resets it before passing it
+ * to a collision manager, so searches don't allocate anything.
+ *
+ * A collision manager feeds candidates to visit() in whatever order suits it,
+ * using getBound2() to skip any part of space that can't improve the result.
+ *
+ * @author wdyce
+ * @since Jan 18, 2013
+ */
+public class NearestSearch implements IColliderVisitor
+{
+  /* ATTRIBUTES */
+  // parameters
+  private final int k;
+  private final V2 centre = new V2();
+  private float max_distance, max_distance2;
+  private IColliderFilter filter;
+  // results, sorted by distance
+  private final Collider[] found;
+  private final float[] found_distance2;
+  private int n_found = 0;
+  // query shape used by managers that search in expanding circles
+  private final Circle probe = new Circle();
+
+  /* METHODS */
+
+  // constructors
+
+  public NearestSearch(int k_)
+  {
+    this.k = Math.max(k_, 1);
+    found = new Collider[k];
+    found_distance2 = new float[k];
+  }
+
+  // accessors
+
+  public V2 getCentre()
+  {
+    return centre;
+  }
+
+  public float getMaxDistance()
+  {
+    return max_distance;
+  }
+
+  /**
+   * @return the squared distance beyond which a collider can no longer make it
+   * into the results.
+   */
+  public float getBound2()
+  {
+    return (n_found == k) ? found_distance2[k - 1] : max_distance2;
+  }
+
+  /**
+   * Have the k nearest colliders been found, assuming that every collider
+   * whose centre is within the given radius has been visited?
+   */
+  public boolean isSettled(float radius)
+  {
+    return (radius >= max_distance
+            || (n_found == k && found_distance2[k - 1] <= radius*radius));
+  }
+
+  public int size()
+  {
+    return n_found;
+  }
+
+  public Collider get(int i)
+  {
+    return (i >= 0 && i < n_found) ? found[i] : null;
+  }
+
+  public float getDistance2(int i)
+  {
+    return (i >= 0 && i < n_found) ? found_distance2[i] : Float.MAX_VALUE;
+  }
+
+  public Collider getNearest()
+  {
+    return get(0);
+  }
+
+  /**
+   * @return a circle around the centre of the search, which is overwritten by
+   * the next call.
+   */
+  public Circle getProbe(float radius)
+  {
+    probe.centre.reset(centre);
+    probe.radius = radius;
+    return probe;
+  }
+
+  // mutators
+
+  /**
+   * Start a new search, forgetting the results of the previous one.
+   *
+   * @param centre_ the point around which to search.
+   * @param max_distance_ how far from the point to search, which should be no
+   * larger than is needed since managers may scan everything within it.
+   * @param filter_ which colliders to consider, or null for all of them.
+   */
+  public void reset(V2 centre_, float max_distance_, IColliderFilter filter_)
+  {
+    centre.reset(centre_);
+    max_distance = max_distance_;
+    max_distance2 = max_distance_ * max_distance_;
+    filter = filter_;
+    for(int i = 0; i < n_found; i++)
+      found[i] = null;
+    n_found = 0;
+  }
+
+  /* IMPLEMENTS -- ICOLLIDERVISITOR */
+
+  @Override
+  public boolean visit(Collider c)
+  {
+    float distance2 = c.getCircle().centre.distance2(centre);
+    if(distance2 > max_distance2 
+    || (n_found == k && distance2 >= found_distance2[k - 1])
+    || (filter != null && !filter.accept(c)))
+      return true;
+
+    // candidates may be visited more than once
+    for(int i = 0; i < n_found; i++)
+      if(found[i] == c)
+        return true;
+
+    // insertion into the sorted results, dropping the furthest if full
+    int i = (n_found < k) ? n_found++ : k - 1;
+    while(i > 0 && found_distance2[i - 1] > distance2)
+    {
+      found[i] = found[i - 1];
+      found_distance2[i] = found_distance2[i - 1];
+      i--;
+    }
+    found[i] = c;
+    found_distance2[i] = distance2;
+    return true;
+  }
+}
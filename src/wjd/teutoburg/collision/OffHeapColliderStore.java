@@ -0,0 +1,233 @@
+/*
+ Copyright (C) 2012 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.teutoburg.collision;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import wjd.math.Rect;
+
+/**
+ * Colliders which exist only as a centre, a radius and some flags, kept in
+ * columns outside of the Java heap. There is no Collider, Circle or V2 object
+ * behind each one, just 16 bytes of native memory, so millions of them can be
+ * stored without weighing on the garbage collector. They are known by their
+ * index, which never changes for as long as they are in the store.
+ *
+ * The columns live in a single direct buffer, which is replaced by one twice
+ * the size whenever it fills up.
+ *
+ * @author wdyce
+ * @since Jan 26, 2013
+ */
+public class OffHeapColliderStore
+{
+  /* CONSTANTS */
+  public static final int FLAG_ACTIVE = 1;
+  private static final int N_COLUMNS = 4, BYTES_PER_VALUE = 4;
+
+  /* ATTRIBUTES */
+  // columns, indexed by collider: views of a single direct buffer
+  private ByteBuffer memory;
+  private FloatBuffer x, y, radius;
+  private IntBuffer flags;
+  private int capacity;
+  // indices in use, including those of removed colliders
+  private int size = 0, n_active = 0;
+  private int[] free_ids = new int[16];
+  private int n_free_ids = 0;
+
+  /* METHODS */
+
+  // constructors
+
+  public OffHeapColliderStore()
+  {
+    this(1024);
+  }
+
+  public OffHeapColliderStore(int capacity_)
+  {
+    allocate(Math.max(capacity_, 1));
+  }
+
+  // accessors
+
+  /**
+   * @return one more than the highest index in use, including those of
+   * removed colliders.
+   */
+  public int size()
+  {
+    return size;
+  }
+
+  public int getNActive()
+  {
+    return n_active;
+  }
+
+  /**
+   * @return the number of bytes of native memory holding the columns.
+   */
+  public long getFootprint()
+  {
+    return (long)capacity * N_COLUMNS * BYTES_PER_VALUE;
+  }
+
+  public boolean isActive(int id)
+  {
+    return ((flags.get(id) & FLAG_ACTIVE) != 0);
+  }
+
+  public boolean hasFlag(int id, int flag)
+  {
+    return ((flags.get(id) & flag) != 0);
+  }
+
+  public float getX(int id)
+  {
+    return x.get(id);
+  }
+
+  public float getY(int id)
+  {
+    return y.get(id);
+  }
+
+  public float getRadius(int id)
+  {
+    return radius.get(id);
+  }
+
+  /**
+   * How much do two stored circles overlap?
+   *
+   * @return the depth of the overlap, or 0 if the circles don't touch.
+   */
+  public float getOverlap(int a, int b)
+  {
+    float dx = x.get(a) - x.get(b), dy = y.get(a) - y.get(b),
+          r = radius.get(a) + radius.get(b), dist2 = dx*dx + dy*dy;
+    // only take the square root of pairs which actually touch
+    return (dist2 < r*r) ? r - (float)Math.sqrt(dist2) : 0.0f;
+  }
+
+  public boolean inside(int id, Rect area)
+  {
+    float cx = x.get(id), cy = y.get(id), r = radius.get(id);
+    return (cx - r >= area.x && cx + r <= area.endx()
+          && cy - r >= area.y && cy + r <= area.endy());
+  }
+
+  // mutators
+
+  /**
+   * Add a collider to the store, reusing the index of a removed one if any.
+   *
+   * @return the index of the new collider.
+   */
+  public int add(float x_, float y_, float radius_)
+  {
+    int id;
+    if(n_free_ids > 0)
+      id = free_ids[--n_free_ids];
+    else
+    {
+      if(size == capacity)
+        allocate(capacity * 2);
+      id = size++;
+    }
+    x.put(id, x_);
+    y.put(id, y_);
+    radius.put(id, radius_);
+    flags.put(id, FLAG_ACTIVE);
+    n_active++;
+    return id;
+  }
+
+  public void remove(int id)
+  {
+    if(!isActive(id))
+      return;
+    flags.put(id, 0);
+    n_active--;
+    if(n_free_ids == free_ids.length)
+      free_ids = Arrays.copyOf(free_ids, n_free_ids * 2);
+    free_ids[n_free_ids++] = id;
+  }
+
+  public void setCentre(int id, float x_, float y_)
+  {
+    x.put(id, x_);
+    y.put(id, y_);
+  }
+
+  public void setRadius(int id, float radius_)
+  {
+    radius.put(id, radius_);
+  }
+
+  public void setFlag(int id, int flag, boolean value)
+  {
+    int f = flags.get(id);
+    flags.put(id, value ? (f | flag) : (f & ~flag));
+  }
+
+  /* SUBROUTINES */
+
+  private void allocate(int new_capacity)
+  {
+    ByteBuffer new_memory = ByteBuffer.allocateDirect(
+      new_capacity * N_COLUMNS * BYTES_PER_VALUE).order(ByteOrder.nativeOrder());
+    FloatBuffer new_x = column(new_memory, 0, new_capacity).asFloatBuffer(),
+                new_y = column(new_memory, 1, new_capacity).asFloatBuffer(),
+                new_radius
+                  = column(new_memory, 2, new_capacity).asFloatBuffer();
+    IntBuffer new_flags = column(new_memory, 3, new_capacity).asIntBuffer();
+
+    // copy the colliders already stored
+    if(memory != null)
+    {
+      for(int id = 0; id < size; id++)
+      {
+        new_x.put(id, x.get(id));
+        new_y.put(id, y.get(id));
+        new_radius.put(id, radius.get(id));
+        new_flags.put(id, flags.get(id));
+      }
+    }
+
+    memory = new_memory;
+    x = new_x;
+    y = new_y;
+    radius = new_radius;
+    flags = new_flags;
+    capacity = new_capacity;
+  }
+
+  private static ByteBuffer column(ByteBuffer memory, int column, int length)
+  {
+    int bytes = length * BYTES_PER_VALUE;
+    memory.limit((column + 1) * bytes).position(column * bytes);
+    ByteBuffer slice = memory.slice().order(ByteOrder.nativeOrder());
+    memory.clear();
+    return slice;
+  }
+}
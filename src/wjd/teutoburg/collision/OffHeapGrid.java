@@ -0,0 +1,242 @@
+/*
+ Copyright (C) 2012 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.teutoburg.collision;
+
+import java.util.Arrays;
+import wjd.math.Circle;
+import wjd.math.Rect;
+import wjd.teutoburg.simulation.Tile;
+
+/**
+ * Broad-phase over the colliders of an OffHeapColliderStore, for maps with
+ * far too many colliders to give each one a Collider object. Each collider is
+ * binned into the cell of a uniform grid containing its centre, the cells
+ * being at least as wide as the widest collider, so only colliders in
+ * neighbouring cells can touch.
+ *
+ * The grid is rebuilt with a counting sort at each pass. It only uses a few
+ * arrays of primitives, whose size depends on the number of colliders but
+ * which are reused from one pass to the next.
+ *
+ * @author wdyce
+ * @since Jan 26, 2013
+ */
+public class OffHeapGrid
+{
+  /* CONSTANTS */
+  private static final float MIN_CELL_SIZE = Tile.SIZE.x;
+  // cells per collider beyond which the cells are made wider
+  private static final int MAX_CELLS_PER_COLLIDER = 4;
+
+  /* ATTRIBUTES */
+  private final OffHeapColliderStore store;
+  private final Rect boundary;
+  // grid, as chosen at the last rebuild
+  private float inv_cell_size;
+  private int n_cols = 1, n_rows = 1;
+  // colliders sorted by cell: cell c holds ids[cell_start[c] .. [c+1])
+  private int[] cell_start = new int[2];
+  private int[] ids = new int[0];
+  private int[] cell_of = new int[0];
+
+  /* METHODS */
+
+  // constructors
+
+  public OffHeapGrid(OffHeapColliderStore store_, Rect boundary_)
+  {
+    this.store = store_;
+    this.boundary = boundary_;
+  }
+
+  // accessors
+
+  private int col(float x)
+  {
+    int col = (int)((x - boundary.x) * inv_cell_size);
+    return (col < 0) ? 0 : ((col >= n_cols) ? n_cols - 1 : col);
+  }
+
+  private int row(float y)
+  {
+    int row = (int)((y - boundary.y) * inv_cell_size);
+    return (row < 0) ? 0 : ((row >= n_rows) ? n_rows - 1 : row);
+  }
+
+  /**
+   * Pass each active collider touching the area to the visitor. Colliders
+   * which have moved since the last rebuild are looked for where they were.
+   */
+  public void visitInRect(Rect area, IIndexVisitor visitor)
+  {
+    visitCells(area.x, area.y, area.endx(), area.endy(), area, null, visitor);
+  }
+
+  public void visitInCircle(Circle circle, IIndexVisitor visitor)
+  {
+    float r = circle.radius;
+    visitCells(circle.centre.x - r, circle.centre.y - r,
+               circle.centre.x + r, circle.centre.y + r, null, circle,
+               visitor);
+  }
+
+  // mutators
+
+  /**
+   * Re-bin the colliders of the store into the grid.
+   */
+  public void rebuild()
+  {
+    int n_ids = store.size();
+    if(n_ids > ids.length)
+    {
+      ids = new int[Math.max(n_ids, ids.length * 2)];
+      cell_of = new int[ids.length];
+    }
+
+    // cells must be at least as wide as the widest collider, and not so
+    // narrow that there are many more cells than colliders
+    float max_radius = 0;
+    for(int id = 0; id < n_ids; id++)
+      if(store.isActive(id))
+        max_radius = Math.max(max_radius, store.getRadius(id));
+    float cell_size = Math.max(MIN_CELL_SIZE, 2*max_radius),
+          min_size = (float)Math.sqrt(boundary.w * boundary.h
+                / Math.max(1.0, (double)MAX_CELLS_PER_COLLIDER*n_ids));
+    cell_size = Math.max(cell_size, min_size);
+    inv_cell_size = 1.0f / cell_size;
+    n_cols = Math.max(1, (int)Math.ceil(boundary.w * inv_cell_size));
+    n_rows = Math.max(1, (int)Math.ceil(boundary.h * inv_cell_size));
+    int n_cells = n_cols * n_rows;
+    if(n_cells + 1 > cell_start.length)
+      cell_start = new int[n_cells + 1];
+    else
+      Arrays.fill(cell_start, 0, n_cells + 1, 0);
+
+    // count the colliders in each cell
+    for(int id = 0; id < n_ids; id++)
+    {
+      if(!store.isActive(id))
+        continue;
+      int cell = row(store.getY(id))*n_cols + col(store.getX(id));
+      cell_of[id] = cell;
+      cell_start[cell + 1]++;
+    }
+
+    // prefix sum, then scatter using the start of each cell as a cursor
+    for(int c = 0; c < n_cells; c++)
+      cell_start[c + 1] += cell_start[c];
+    for(int id = n_ids - 1; id >= 0; id--)
+      if(store.isActive(id))
+        ids[--cell_start[cell_of[id] + 1]] = id;
+    System.arraycopy(cell_start, 1, cell_start, 0, n_cells);
+    cell_start[n_cells] = store.getNActive();
+  }
+
+  /**
+   * Rebuild the grid and report every pair of overlapping colliders, in the
+   * order of the cells and then of the indices.
+   */
+  public void generatePairs(IPairVisitor visitor)
+  {
+    rebuild();
+
+    for(int row = 0; row < n_rows; row++)
+    for(int col = 0; col < n_cols; col++)
+    {
+      int cell = row*n_cols + col;
+      for(int i = cell_start[cell]; i < cell_start[cell + 1]; i++)
+      {
+        int a = ids[i];
+
+        // the rest of this cell
+        for(int j = i + 1; j < cell_start[cell + 1]; j++)
+          report(a, ids[j], visitor);
+
+        // half of the neighbouring cells, so that each pair is tested once
+        if(col + 1 < n_cols)
+          scanCell(a, cell + 1, visitor);
+        if(row + 1 < n_rows)
+        {
+          if(col > 0)
+            scanCell(a, cell + n_cols - 1, visitor);
+          scanCell(a, cell + n_cols, visitor);
+          if(col + 1 < n_cols)
+            scanCell(a, cell + n_cols + 1, visitor);
+        }
+      }
+    }
+  }
+
+  /* SUBROUTINES */
+
+  private void scanCell(int a, int cell, IPairVisitor visitor)
+  {
+    for(int i = cell_start[cell]; i < cell_start[cell + 1]; i++)
+      report(a, ids[i], visitor);
+  }
+
+  private void report(int a, int b, IPairVisitor visitor)
+  {
+    float overlap = store.getOverlap(a, b);
+    if(overlap > 0)
+    {
+      if(a < b)
+        visitor.visit(a, b, overlap);
+      else
+        visitor.visit(b, a, overlap);
+    }
+  }
+
+  private void visitCells(float x0, float y0, float x1, float y1,
+                          Rect area, Circle circle, IIndexVisitor visitor)
+  {
+    // centres can be up to half a cell outside the query's bounding box
+    float margin = 0.5f / inv_cell_size;
+    int col0 = col(x0 - margin), col1 = col(x1 + margin),
+        row1 = row(y1 + margin);
+    for(int row = row(y0 - margin); row <= row1; row++)
+    for(int col = col0; col <= col1; col++)
+    {
+      int cell = row*n_cols + col;
+      for(int i = cell_start[cell]; i < cell_start[cell + 1]; i++)
+      {
+        int id = ids[i];
+        if(store.isActive(id)
+        && (circle == null ? touches(id, area) : touches(id, circle))
+        && !visitor.visit(id))
+          return;
+      }
+    }
+  }
+
+  private boolean touches(int id, Rect area)
+  {
+    float x = store.getX(id), y = store.getY(id), r = store.getRadius(id),
+          dx = x - Math.max(area.x, Math.min(x, area.endx())),
+          dy = y - Math.max(area.y, Math.min(y, area.endy()));
+    return (dx*dx + dy*dy <= r*r);
+  }
+
+  private boolean touches(int id, Circle circle)
+  {
+    float dx = store.getX(id) - circle.centre.x,
+          dy = store.getY(id) - circle.centre.y,
+          r = store.getRadius(id) + circle.radius;
+    return (dx*dx + dy*dy <= r*r);
+  }
+}
@@ -14,47 +14,46 @@
  You should have received a copy of the GNU General Public License
  along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
-package wjd.teutoburg.quadtree;
+package wjd.teutoburg.collision;
 
-import java.util.Iterator;
+import java.util.Arrays;
 
 /**
- * Spools through the 4 children of a Quad Tree node.
+ * Growable array of pairs of handles, packed into longs with the smallest
+ * handle in the high bits so that sorting the keys sorts the pairs.
  *
  * @author wdyce
- * @since Dec 13, 2012
+ * @since Jan 13, 2013
  */
-public class QTBranchIterator implements Iterator<QTNode>
+class PairBuffer
 {
   /* ATTRIBUTES */
-  private final QTNode parent;
-  private int child_i = 0;
+  long[] keys = new long[256];
+  int size = 0;
 
   /* METHODS */
-  
-  // constructors
-  QTBranchIterator(QTNode parent_)
+
+  void clear()
   {
-    this.parent = parent_;
+    size = 0;
   }
-  
-  /* IMPLEMENTS -- ITERATOR<QUADNODE> */
-  
-  @Override
-  public boolean hasNext()
+
+  void add(int a, int b)
   {
-    return (child_i < 4);
+    reserve(size + 1);
+    keys[size++] = (a < b) ? (((long)a << 32) | b) : (((long)b << 32) | a);
   }
 
-  @Override
-  public QTNode next()
+  void addAll(PairBuffer other)
   {
-    return parent.getChildTree(child_i++);
+    reserve(size + other.size);
+    System.arraycopy(other.keys, 0, keys, size, other.size);
+    size += other.size;
   }
 
-  @Override
-  public void remove()
+  private void reserve(int capacity)
   {
-    throw new UnsupportedOperationException("Remove is not supported.");
+    if(capacity > keys.length)
+      keys = Arrays.copyOf(keys, Math.max(capacity, keys.length * 2));
   }
 }
@@ -0,0 +1,73 @@
+/*
+ Copyright (C) 2012 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.teutoburg.collision;
+
+import java.util.Arrays;
+
+/**
+ * Stands in for a ContactCache, keeping the overlapping pairs reported to it
+ * instead of generating contact events, so that they can be passed on to the
+ * real cache later. This allows a broad-phase to be timed without counting
+ * the time the colliders spend handling their contacts.
+ *
+ * @author wdyce
+ * @since Feb 1, 2013
+ */
+class PairRecorder extends ContactCache
+{
+  /* ATTRIBUTES */
+  private Collider[] first = new Collider[256], second = new Collider[256];
+  private float[] overlaps = new float[256];
+  private int size = 0;
+
+  /* METHODS */
+
+  // mutators
+
+  void clear()
+  {
+    Arrays.fill(first, 0, size, null);
+    Arrays.fill(second, 0, size, null);
+    size = 0;
+  }
+
+  /**
+   * Report every pair recorded since the last call to clear(), in the order
+   * they were recorded.
+   */
+  void replay(ContactCache contacts)
+  {
+    for(int i = 0; i < size; i++)
+      contacts.touch(first[i], second[i], overlaps[i]);
+  }
+
+  /* OVERRIDES -- CONTACTCACHE */
+
+  @Override
+  public void touch(Collider a, Collider b, float overlap)
+  {
+    if(size == first.length)
+    {
+      first = Arrays.copyOf(first, size * 2);
+      second = Arrays.copyOf(second, size * 2);
+      overlaps = Arrays.copyOf(overlaps, size * 2);
+    }
+    first[size] = a;
+    second[size] = b;
+    overlaps[size++] = overlap;
+  }
+}
@@ -0,0 +1,286 @@
+/*
+ Copyright (C) 2012 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.teutoburg.collision;
+
+import java.util.Arrays;
+import wjd.math.Rect;
+import wjd.math.V2;
+
+/**
+ * Answers a whole batch of rectangle queries at once, each query receiving
+ * the candidates whose centres lie inside its rectangle. The candidates are
+ * sorted by the cell of a coarse grid they fall into, and only the occupied
+ * cells are kept, so each query only looks at the few occupied cells it
+ * overlaps rather than at every cell of its rectangle.
+ *
+ * The results of each query are stored one after the other, so that each one
+ * can be read back as a compact slice until the batch is cleared.
+ *
+ * @author wdyce
+ * @since Jan 24, 2013
+ */
+public class RectQueryBatch
+{
+  /* ATTRIBUTES */
+  // grid used to sort the candidates
+  private final float origin_x, origin_y, inv_cell_size;
+  private final int n_cols, n_rows;
+  // candidates, and their order by cell
+  private Collider[] candidates = new Collider[64];
+  private int n_candidates = 0;
+  private long[] sort_keys = new long[64];
+  private Collider[] sorted = new Collider[64];
+  // occupied cells: cell_id[i]'s candidates are sorted[cell_start[i] .. [i+1])
+  private int[] cell_id = new int[64], cell_start = new int[65];
+  private int n_cells = 0;
+  // queries, as bounding coordinates
+  private float[] min_x = new float[64], min_y = new float[64],
+                  max_x = new float[64], max_y = new float[64];
+  private int n_queries = 0;
+  // results of query q: results[result_start[q] .. result_start[q+1])
+  private Collider[] results = new Collider[256];
+  private float[] result_x = new float[256], result_y = new float[256];
+  private int[] result_start = new int[65];
+  private int n_results = 0;
+  private boolean answered = false;
+
+  /* METHODS */
+
+  // constructors
+
+  /**
+   * @param area the area in which the candidates can be found, any outside it
+   * being treated as if they were on its edge.
+   * @param cell_size the size of the cells used to sort candidates, which is
+   * best close to that of the query rectangles.
+   */
+  public RectQueryBatch(Rect area, float cell_size)
+  {
+    origin_x = area.x;
+    origin_y = area.y;
+    inv_cell_size = 1.0f / cell_size;
+    n_cols = Math.max(1, (int)Math.ceil(area.w * inv_cell_size));
+    n_rows = Math.max(1, (int)Math.ceil(area.h * inv_cell_size));
+  }
+
+  // accessors
+
+  public int getNQueries()
+  {
+    return n_queries;
+  }
+
+  public int getNResults(int query)
+  {
+    checkAnswered();
+    return result_start[query + 1] - result_start[query];
+  }
+
+  public Collider getResult(int query, int i)
+  {
+    checkAnswered();
+    return results[result_start[query] + i];
+  }
+
+  /**
+   * Squared distance from a point to the centre of each result of a query,
+   * as it was when the batch was answered.
+   *
+   * @param out receives the distance to result i at out[i], and must have
+   * room for all the results of the query.
+   */
+  public void getDistances2(int query, float x, float y, float[] out)
+  {
+    checkAnswered();
+    CircleKernels.distance2(x, y, result_x, result_y, 
+                            result_start[query], result_start[query + 1], out);
+  }
+
+  /**
+   * Pass each result of a query to the visitor, cell by cell and in the
+   * order in which the candidates were added within each cell.
+   *
+   * @return false if the visitor asked to stop.
+   */
+  public boolean visit(int query, IColliderVisitor visitor)
+  {
+    checkAnswered();
+    for(int i = result_start[query]; i < result_start[query + 1]; i++)
+      if(!visitor.visit(results[i]))
+        return false;
+    return true;
+  }
+
+  // mutators
+
+  /**
+   * Forget the candidates, queries and results of the previous batch.
+   */
+  public void clear()
+  {
+    Arrays.fill(candidates, 0, n_candidates, null);
+    Arrays.fill(sorted, 0, n_candidates, null);
+    Arrays.fill(results, 0, n_results, null);
+    n_candidates = n_queries = n_cells = n_results = 0;
+    answered = false;
+  }
+
+  public void addCandidate(Collider c)
+  {
+    if(n_candidates == candidates.length)
+    {
+      int capacity = n_candidates * 2;
+      candidates = Arrays.copyOf(candidates, capacity);
+      sorted = Arrays.copyOf(sorted, capacity);
+      sort_keys = Arrays.copyOf(sort_keys, capacity);
+      cell_id = Arrays.copyOf(cell_id, capacity);
+      cell_start = Arrays.copyOf(cell_start, capacity + 1);
+    }
+    candidates[n_candidates++] = c;
+    answered = false;
+  }
+
+  /**
+   * @return the index by which to retrieve the results of the query, once
+   * the batch has been answered.
+   */
+  public int addQuery(Rect area)
+  {
+    if(n_queries == min_x.length)
+    {
+      int capacity = n_queries * 2;
+      min_x = Arrays.copyOf(min_x, capacity);
+      min_y = Arrays.copyOf(min_y, capacity);
+      max_x = Arrays.copyOf(max_x, capacity);
+      max_y = Arrays.copyOf(max_y, capacity);
+      result_start = Arrays.copyOf(result_start, capacity + 1);
+    }
+    min_x[n_queries] = area.x;
+    min_y[n_queries] = area.y;
+    max_x[n_queries] = area.endx();
+    max_y[n_queries] = area.endy();
+    answered = false;
+    return n_queries++;
+  }
+
+  /**
+   * Answer every query added since the batch was last cleared.
+   */
+  public void answer()
+  {
+    sortCandidates();
+
+    int n = 0;
+    for(int q = 0; q < n_queries; q++)
+    {
+      result_start[q] = n;
+      float x0 = min_x[q], y0 = min_y[q], x1 = max_x[q], y1 = max_y[q];
+      int col0 = col(x0), col1 = col(x1), row1 = row(y1);
+
+      // each row of cells is a contiguous run of occupied cells
+      for(int row = row(y0); row <= row1; row++)
+      {
+        int first_id = row*n_cols + col0, last_id = row*n_cols + col1;
+        for(int cell = firstCellFrom(first_id);
+            cell < n_cells && cell_id[cell] <= last_id; cell++)
+        {
+          for(int i = cell_start[cell]; i < cell_start[cell + 1]; i++)
+          {
+            V2 p = sorted[i].getCircle().centre;
+            if(p.x >= x0 && p.x <= x1 && p.y >= y0 && p.y <= y1)
+            {
+              if(n == results.length)
+              {
+                results = Arrays.copyOf(results, n * 2);
+                result_x = Arrays.copyOf(result_x, n * 2);
+                result_y = Arrays.copyOf(result_y, n * 2);
+              }
+              result_x[n] = p.x;
+              result_y[n] = p.y;
+              results[n++] = sorted[i];
+            }
+          }
+        }
+      }
+    }
+    result_start[n_queries] = n_results = n;
+    answered = true;
+  }
+
+  /* SUBROUTINES */
+
+  private int col(float x)
+  {
+    int col = (int)((x - origin_x) * inv_cell_size);
+    return (col < 0) ? 0 : ((col >= n_cols) ? n_cols - 1 : col);
+  }
+
+  private int row(float y)
+  {
+    int row = (int)((y - origin_y) * inv_cell_size);
+    return (row < 0) ? 0 : ((row >= n_rows) ? n_rows - 1 : row);
+  }
+
+  private void sortCandidates()
+  {
+    // sort by cell, then by order of addition
+    for(int i = 0; i < n_candidates; i++)
+    {
+      V2 p = candidates[i].getCircle().centre;
+      long cell = row(p.y)*n_cols + col(p.x);
+      sort_keys[i] = (cell << 32) | i;
+    }
+    Arrays.sort(sort_keys, 0, n_candidates);
+
+    // group the candidates by occupied cell
+    n_cells = 0;
+    int previous = -1;
+    for(int i = 0; i < n_candidates; i++)
+    {
+      int cell = (int)(sort_keys[i] >>> 32);
+      sorted[i] = candidates[(int)sort_keys[i]];
+      if(cell != previous)
+      {
+        cell_id[n_cells] = cell;
+        cell_start[n_cells++] = i;
+        previous = cell;
+      }
+    }
+    cell_start[n_cells] = n_candidates;
+  }
+
+  private int firstCellFrom(int id)
+  {
+    // binary search for the first occupied cell with at least this id
+    int low = 0, high = n_cells;
+    while(low < high)
+    {
+      int middle = (low + high) >>> 1;
+      if(cell_id[middle] < id)
+        low = middle + 1;
+      else
+        high = middle;
+    }
+    return low;
+  }
+
+  private void checkAnswered()
+  {
+    if(!answered)
+      throw new IllegalStateException("The batch has not been answered");
+  }
+}
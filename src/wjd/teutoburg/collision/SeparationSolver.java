@@ -0,0 +1,116 @@
+/*
+ Copyright (C) 2012 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.teutoburg.collision;
+
+import java.util.Arrays;
+
+/**
+ * Gathers the pushes agents give each other while overlapping, then applies
+ * them all at once. Every push is worked out from the positions at the time
+ * of the collision pass and none is applied before all have been gathered,
+ * so the agents are separated as if all contacts were resolved at the same
+ * time.
+ *
+ * Pushes are summed in fixed point: integer addition doesn't depend on the
+ * order of the terms, so neither does the result, whatever order the contacts
+ * were reported in.
+ *
+ * @author wdyce
+ * @since Jan 22, 2013
+ */
+public class SeparationSolver
+{
+  /* CONSTANTS */
+  private static final float SCALE = (float)(1 << 20), INV_SCALE = 1/SCALE;
+
+  /* ATTRIBUTES */
+  private Agent[] bodies = new Agent[64];
+  private long[] impulse_x = new long[64], impulse_y = new long[64];
+  private int n_bodies = 0;
+
+  /* METHODS */
+
+  // accessors
+
+  public int size()
+  {
+    return n_bodies;
+  }
+
+  // mutators
+
+  public void register(Agent a)
+  {
+    if(a.solver != null)
+      return;
+
+    if(n_bodies == bodies.length)
+    {
+      int capacity = n_bodies * 2;
+      bodies = Arrays.copyOf(bodies, capacity);
+      impulse_x = Arrays.copyOf(impulse_x, capacity);
+      impulse_y = Arrays.copyOf(impulse_y, capacity);
+    }
+    a.solver = this;
+    a.solver_slot = n_bodies;
+    impulse_x[n_bodies] = impulse_y[n_bodies] = 0;
+    bodies[n_bodies++] = a;
+  }
+
+  public void unregister(Agent a)
+  {
+    if(a.solver != this)
+      return;
+
+    // the last body takes the place of the one removed, along with its pushes
+    int slot = a.solver_slot, last = --n_bodies;
+    if(slot != last)
+    {
+      bodies[slot] = bodies[last];
+      bodies[slot].solver_slot = slot;
+      impulse_x[slot] = impulse_x[last];
+      impulse_y[slot] = impulse_y[last];
+    }
+    bodies[last] = null;
+    a.solver = null;
+    a.solver_slot = -1;
+  }
+
+  /**
+   * Add every push gathered since the last call to the speed of the agent
+   * receiving it.
+   */
+  public void resolve()
+  {
+    for(int i = 0; i < n_bodies; i++)
+    {
+      if(impulse_x[i] != 0 || impulse_y[i] != 0)
+      {
+        bodies[i].speed.add(impulse_x[i] * INV_SCALE, impulse_y[i] * INV_SCALE);
+        impulse_x[i] = impulse_y[i] = 0;
+      }
+    }
+  }
+
+  /* SUBROUTINES */
+
+  void accumulate(int slot, float x, float y)
+  {
+    impulse_x[slot] += (long)(x * SCALE);
+    impulse_y[slot] += (long)(y * SCALE);
+  }
+}
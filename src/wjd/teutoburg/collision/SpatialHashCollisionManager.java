@@ -0,0 +1,375 @@
+/*
+ Copyright (C) 2012 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.teutoburg.collision;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import wjd.math.Circle;
+import wjd.math.Rect;
+import wjd.teutoburg.simulation.Tile;
+
+/**
+ * Broad-phase backed by a uniform spatial hash whose cells are the size of a
+ * Tile, reading the colliders' shapes from a packed ColliderStore. Each
+ * collider is binned into every cell its bounding box touches, so only
+ * colliders sharing a cell are ever tested against one another.
+ *
+ * The table is rebuilt from scratch with a counting sort at each call to
+ * generateCollisions(), so colliders are free to move between calls.
+ *
+ * In parallel mode the buckets are split into chunks which are scanned for
+ * overlapping pairs on a fork-join pool. Either way the pairs found are
+ * sorted by ColliderStore slot before being reported, so contact events are
+ * generated in the same order whether or not the scan ran in parallel.
+ *
+ * @author wdyce
+ * @since Jan 7, 2013
+ */
+public class SpatialHashCollisionManager extends ACollisionManager
+{
+  /* CONSTANTS */
+  private static final int N_BUCKETS = 4096; // must be a power of 2
+  private static final int BUCKET_MASK = N_BUCKETS - 1;
+  private static final int N_CHUNKS = 64; // must divide N_BUCKETS
+  private static final int CHUNK_SIZE = N_BUCKETS / N_CHUNKS;
+  private static final float CELL_W = Tile.SIZE.x, CELL_H = Tile.SIZE.y,
+                            INV_CELL_W = 1.0f/CELL_W, INV_CELL_H = 1.0f/CELL_H;
+
+  /* ATTRIBUTES */
+  // registered objects
+  private final ColliderStore objects = new ColliderStore();
+  // hash table: entries sorted by bucket, bucket b is [start[b], start[b+1])
+  private final int[] bucket_start = new int[N_BUCKETS + 1];
+  private int[] entry_cx = new int[256], entry_cy = new int[256],
+                entry_id = new int[256];
+  private int n_entries = 0;
+  // objects registered since the table was last rebuilt
+  private int n_binned = 0;
+  // overlapping pairs found during the current pass, as packed handles
+  private final PairBuffer pairs = new PairBuffer();
+  // parallel mode: each chunk of buckets collects pairs into its own buffer
+  private ForkJoinPool pool = null;
+  private PairBuffer[] chunk_pairs = null;
+
+  /* METHODS */
+
+  // constructors
+
+  public SpatialHashCollisionManager(Rect boundary_)
+  {
+    super(boundary_);
+  }
+
+  // accessors
+
+  private static int hash(int cx, int cy)
+  {
+    return ((cx * 73856093) ^ (cy * 19349663)) & BUCKET_MASK;
+  }
+
+  private static int cellX(float x)
+  {
+    return (int)Math.floor(x * INV_CELL_W);
+  }
+
+  private static int cellY(float y)
+  {
+    return (int)Math.floor(y * INV_CELL_H);
+  }
+
+  public boolean isParallel()
+  {
+    return (pool != null);
+  }
+
+  // mutators
+
+  /**
+   * Scan for overlapping pairs on several threads, or on the calling thread.
+   * Contact events are always generated on the calling thread.
+   */
+  public void setParallel(boolean parallel)
+  {
+    if(parallel == isParallel())
+      return;
+
+    if(parallel)
+    {
+      pool = new ForkJoinPool();
+      chunk_pairs = new PairBuffer[N_CHUNKS];
+      for(int c = 0; c < N_CHUNKS; c++)
+        chunk_pairs[c] = new PairBuffer();
+    }
+    else
+    {
+      pool.shutdown();
+      pool = null;
+      chunk_pairs = null;
+    }
+  }
+
+  /* IMPLEMENTS -- ICOLLISIONMANAGER */
+
+  @Override
+  public void visitInRect(Rect area, IColliderVisitor visitor)
+  {
+    visitCells(cellX(area.x), cellX(area.endx()), 
+               cellY(area.y), cellY(area.endy()), area, null, visitor);
+  }
+
+  @Override
+  public void visitInCircle(Circle circle_query, IColliderVisitor visitor)
+  {
+    float x = circle_query.centre.x, y = circle_query.centre.y,
+          r = circle_query.radius;
+    visitCells(cellX(x - r), cellX(x + r), cellY(y - r), cellY(y + r), 
+               null, circle_query, visitor);
+  }
+
+  @Override
+  public void register(Collider c)
+  {
+    objects.add(c);
+  }
+
+  @Override
+  protected void remove(Collider c)
+  {
+    // the table still refers to the slot, which is skipped until compacted
+    int handle = objects.getHandle(c);
+    if(handle >= 0)
+      objects.remove(handle);
+  }
+
+  @Override
+  protected void refresh()
+  {
+    // objects have moved since the last call, so re-bin them
+    objects.compactIfSparse();
+    objects.pull();
+    rebuild();
+  }
+
+  @Override
+  protected void generatePairs(ContactCache contacts)
+  {
+    refresh();
+
+    // check collisions with boundary
+    int n_objects = objects.size();
+    for(int i = 0; i < n_objects; i++)
+      if(objects.isActive(i))
+        checkBoundary(objects, i);
+
+    // find pairs of objects sharing a cell whose circles overlap
+    pairs.clear();
+    if(pool == null)
+      scanBuckets(0, N_BUCKETS, pairs);
+    else
+    {
+      pool.invoke(new ScanTask(0, N_CHUNKS));
+      for(int c = 0; c < N_CHUNKS; c++)
+        pairs.addAll(chunk_pairs[c]);
+    }
+
+    // report them in a canonical order, which doesn't depend on the hash
+    Arrays.sort(pairs.keys, 0, pairs.size);
+    for(int p = 0; p < pairs.size; p++)
+    {
+      long key = pairs.keys[p];
+      int id_a = (int)(key >>> 32), id_b = (int)key;
+      contacts.touch(objects.get(id_a), objects.get(id_b),
+                     objects.getOverlap(id_a, id_b));
+    }
+  }
+
+  @Override
+  public void dispose()
+  {
+    // stop the pool's worker threads
+    setParallel(false);
+  }
+
+  /* SUBROUTINES */
+
+  private void scanBuckets(int first, int last, PairBuffer result)
+  {
+    for(int b = first; b < last; b++)
+    {
+      int end = bucket_start[b+1];
+      for(int i = bucket_start[b]; i < end; i++)
+      for(int j = i + 1; j < end; j++)
+      {
+        // different cells can share a bucket
+        int cx = entry_cx[i], cy = entry_cy[i];
+        if(entry_cx[j] != cx || entry_cy[j] != cy)
+          continue;
+
+        // a pair sharing several cells is only tested in the first of them
+        int id_a = entry_id[i], id_b = entry_id[j];
+        if(Math.max(minCellX(id_a), minCellX(id_b)) != cx
+        || Math.max(minCellY(id_a), minCellY(id_b)) != cy)
+          continue;
+
+        if(objects.getOverlap(id_a, id_b) > 0)
+          result.add(id_a, id_b);
+      }
+    }
+  }
+
+  private void visitCells(int min_cx, int max_cx, int min_cy, int max_cy, 
+                          Rect area, Circle circle, IColliderVisitor visitor)
+  {
+    for(int cy = min_cy; cy <= max_cy; cy++)
+    for(int cx = min_cx; cx <= max_cx; cx++)
+    {
+      int b = hash(cx, cy);
+      for(int e = bucket_start[b]; e < bucket_start[b+1]; e++)
+      {
+        if(entry_cx[e] != cx || entry_cy[e] != cy)
+          continue;
+        // only report objects spanning several cells from the first of them,
+        // going by the position at which they were binned
+        int id = entry_id[e];
+        if(!objects.isActive(id)
+        || Math.max(min_cx, minCellX(id)) != cx
+        || Math.max(min_cy, minCellY(id)) != cy)
+          continue;
+        
+        Collider o = objects.get(id);
+        Circle c = o.getCircle();
+        if((circle == null ? c.collides(area) : circle.collides(c))
+        && !visitor.visit(o))
+          return;
+      }
+    }
+    
+    // objects registered since the last rebuild aren't in the table yet
+    int n_objects = objects.size();
+    for(int i = n_binned; i < n_objects; i++)
+    {
+      Collider o = objects.get(i);
+      if(objects.isActive(i)
+      && (circle == null ? o.getCircle().collides(area) 
+                         : circle.collides(o.getCircle()))
+      && !visitor.visit(o))
+        return;
+    }
+  }
+
+  private int minCellX(int id)
+  {
+    return cellX(objects.getX(id) - objects.getRadius(id));
+  }
+
+  private int minCellY(int id)
+  {
+    return cellY(objects.getY(id) - objects.getRadius(id));
+  }
+
+  private void rebuild()
+  {
+    int n_objects = objects.size();
+    n_binned = n_objects;
+
+    // count the number of entries destined for each bucket
+    Arrays.fill(bucket_start, 0);
+    n_entries = 0;
+    for(int i = 0; i < n_objects; i++)
+    {
+      if(!objects.isActive(i))
+        continue;
+      float x = objects.x[i], y = objects.y[i], r = objects.radius[i];
+      int min_cx = cellX(x - r), max_cx = cellX(x + r),
+          min_cy = cellY(y - r), max_cy = cellY(y + r);
+      for(int cy = min_cy; cy <= max_cy; cy++)
+      for(int cx = min_cx; cx <= max_cx; cx++)
+      {
+        bucket_start[hash(cx, cy) + 1]++;
+        n_entries++;
+      }
+    }
+
+    // make sure there's enough space for all the entries
+    if(n_entries > entry_id.length)
+    {
+      int capacity = Math.max(n_entries, entry_id.length * 2);
+      entry_cx = new int[capacity];
+      entry_cy = new int[capacity];
+      entry_id = new int[capacity];
+    }
+
+    // prefix sum: bucket b now starts where bucket b-1 ends
+    for(int b = 0; b < N_BUCKETS; b++)
+      bucket_start[b+1] += bucket_start[b];
+
+    // scatter the entries into their buckets, using the start of the next
+    // bucket as a write cursor which will end up at the start of this one
+    for(int i = 0; i < n_objects; i++)
+    {
+      if(!objects.isActive(i))
+        continue;
+      float x = objects.x[i], y = objects.y[i], r = objects.radius[i];
+      int min_cx = cellX(x - r), max_cx = cellX(x + r),
+          min_cy = cellY(y - r), max_cy = cellY(y + r);
+      for(int cy = min_cy; cy <= max_cy; cy++)
+      for(int cx = min_cx; cx <= max_cx; cx++)
+      {
+        int e = --bucket_start[hash(cx, cy) + 1];
+        entry_cx[e] = cx;
+        entry_cy[e] = cy;
+        entry_id[e] = i;
+      }
+    }
+
+    // the cursor for bucket b has now wound back to its start: shift down
+    System.arraycopy(bucket_start, 1, bucket_start, 0, N_BUCKETS);
+    bucket_start[N_BUCKETS] = n_entries;
+  }
+
+  /**
+   * Scan a range of chunks, splitting it in two until a single chunk is left.
+   */
+  private class ScanTask extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final int first, last;
+
+    ScanTask(int first_, int last_)
+    {
+      this.first = first_;
+      this.last = last_;
+    }
+
+    @Override
+    protected void compute()
+    {
+      if(last - first == 1)
+      {
+        chunk_pairs[first].clear();
+        scanBuckets(first*CHUNK_SIZE, last*CHUNK_SIZE, chunk_pairs[first]);
+      }
+      else
+      {
+        int middle = (first + last) / 2;
+        invokeAll(new ScanTask(first, middle), new ScanTask(middle, last));
+      }
+    }
+  }
+}
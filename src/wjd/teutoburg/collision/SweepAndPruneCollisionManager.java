@@ -0,0 +1,396 @@
+/*
+ Copyright (C) 2012 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.teutoburg.collision;
+
+import java.util.Arrays;
+import wjd.math.Circle;
+import wjd.math.Rect;
+
+/**
+ * Incremental sort-and-sweep broad-phase. The end-points of each object's
+ * bounding box are kept sorted along each axis: since objects only move a
+ * little between calls, re-sorting with an insertion sort costs close to
+ * nothing. Each swap of a minimum and a maximum is the start or the end of an
+ * overlap along that axis, which is used to keep the set of overlapping boxes
+ * up to date without ever re-testing every pair.
+ *
+ * @author wdyce
+ * @since Jan 9, 2013
+ */
+public class SweepAndPruneCollisionManager extends ACollisionManager
+{
+  /* NESTING */
+  /**
+   * Notified whenever two bounding boxes start or stop overlapping.
+   */
+  public static interface IOverlapListener
+  {
+    public void overlapBegin(Collider a, Collider b);
+
+    public void overlapEnd(Collider a, Collider b);
+  }
+
+  /* CONSTANTS */
+  private static final int X = 0, Y = 1;
+
+  /* ATTRIBUTES */
+  private IOverlapListener listener = null;
+  // registered objects
+  private Collider[] objects = new Collider[64];
+  private int n_objects = 0;
+  // end-points, sorted along each axis: owner index * 2, plus 1 for maxima
+  private float[][] ends_value = new float[2][128];
+  private int[][] ends_id = new int[2][128];
+  // pairs of objects whose bounding boxes overlap
+  private final PairSet overlaps = new PairSet();
+
+  /* METHODS */
+
+  // constructors
+
+  public SweepAndPruneCollisionManager(Rect boundary_)
+  {
+    super(boundary_);
+  }
+
+  // accessors
+
+  public int getNOverlaps()
+  {
+    return overlaps.size;
+  }
+
+  private static float bound(Circle c, int axis, boolean max)
+  {
+    float centre = (axis == X) ? c.centre.x : c.centre.y;
+    return (max ? centre + c.radius : centre - c.radius);
+  }
+
+  private boolean boxesOverlap(int a, int b)
+  {
+    Circle ca = objects[a].getCircle(), cb = objects[b].getCircle();
+    float r = ca.radius + cb.radius;
+    return (Math.abs(ca.centre.x - cb.centre.x) <= r
+            && Math.abs(ca.centre.y - cb.centre.y) <= r);
+  }
+
+  // mutators
+
+  public void setOverlapListener(IOverlapListener listener_)
+  {
+    this.listener = listener_;
+  }
+
+  /* IMPLEMENTS -- ICOLLISIONMANAGER */
+
+  @Override
+  public void visitInRect(Rect area, IColliderVisitor visitor)
+  {
+    // minima are sorted, so stop at the first one past the end of the area
+    float[] values = ends_value[X];
+    int[] ids = ends_id[X];
+    for(int e = 0; e < 2*n_objects && values[e] <= area.endx(); e++)
+      if((ids[e] & 1) == 0)
+      {
+        Collider c = objects[ids[e] >> 1];
+        if(c.getCircle().collides(area) && !visitor.visit(c))
+          return;
+      }
+  }
+
+  @Override
+  public void visitInCircle(Circle circle_query, IColliderVisitor visitor)
+  {
+    // minima are sorted, so stop at the first one past the end of the circle
+    float endx = circle_query.centre.x + circle_query.radius;
+    float[] values = ends_value[X];
+    int[] ids = ends_id[X];
+    for(int e = 0; e < 2*n_objects && values[e] <= endx; e++)
+      if((ids[e] & 1) == 0)
+      {
+        Collider c = objects[ids[e] >> 1];
+        if(circle_query.collides(c.getCircle()) && !visitor.visit(c))
+          return;
+      }
+  }
+
+  @Override
+  public void register(Collider c)
+  {
+    // make space for the new object and its end-points
+    if(n_objects == objects.length)
+    {
+      objects = Arrays.copyOf(objects, n_objects * 2);
+      for(int axis = X; axis <= Y; axis++)
+      {
+        ends_value[axis] = Arrays.copyOf(ends_value[axis], n_objects * 4);
+        ends_id[axis] = Arrays.copyOf(ends_id[axis], n_objects * 4);
+      }
+    }
+    int i = n_objects++;
+    objects[i] = c;
+
+    // add the end-points at the end of each axis, then sort them into place
+    for(int axis = X; axis <= Y; axis++)
+    {
+      int e = 2*i;
+      ends_value[axis][e] = bound(c.getCircle(), axis, false);
+      ends_id[axis][e] = 2*i;
+      ends_value[axis][e+1] = bound(c.getCircle(), axis, true);
+      ends_id[axis][e+1] = 2*i + 1;
+      sort(axis);
+    }
+  }
+
+  @Override
+  protected void remove(Collider c)
+  {
+    int i = 0;
+    while(i < n_objects && objects[i] != c)
+      i++;
+    if(i == n_objects)
+      return;
+
+    // forget the overlaps involving the object
+    long[] involved = overlaps.involving(i);
+    for(long key : involved)
+    {
+      overlaps.remove(key);
+      if(listener != null)
+        listener.overlapEnd(objects[(int)(key >> 32)], objects[(int)key]);
+    }
+
+    // remove its end-points, keeping the others in order
+    for(int axis = X; axis <= Y; axis++)
+    {
+      float[] values = ends_value[axis];
+      int[] ids = ends_id[axis];
+      int kept = 0;
+      for(int e = 0; e < 2*n_objects; e++)
+        if((ids[e] >> 1) != i)
+        {
+          values[kept] = values[e];
+          ids[kept] = ids[e];
+          kept++;
+        }
+    }
+
+    // move the last object into the hole, renumbering its end-points and pairs
+    int last = --n_objects;
+    if(i != last)
+    {
+      objects[i] = objects[last];
+      for(int axis = X; axis <= Y; axis++)
+      {
+        int[] ids = ends_id[axis];
+        for(int e = 0; e < 2*n_objects; e++)
+          if((ids[e] >> 1) == last)
+            ids[e] = 2*i + (ids[e] & 1);
+      }
+      for(long key : overlaps.involving(last))
+      {
+        overlaps.remove(key);
+        int other = ((int)(key >> 32) == last) ? (int)key : (int)(key >> 32);
+        overlaps.add(key(i, other));
+      }
+    }
+    objects[last] = null;
+  }
+
+  @Override
+  protected void refresh()
+  {
+    // update the end-points and restore their order along each axis
+    for(int axis = X; axis <= Y; axis++)
+    {
+      float[] values = ends_value[axis];
+      int[] ids = ends_id[axis];
+      for(int e = 0; e < 2*n_objects; e++)
+        values[e] = bound(objects[ids[e] >> 1].getCircle(), axis,
+                          (ids[e] & 1) == 1);
+      sort(axis);
+    }
+  }
+
+  @Override
+  protected void generatePairs(ContactCache contacts)
+  {
+    refresh();
+
+    // check collisions with boundary
+    for(int i = 0; i < n_objects; i++)
+      checkBoundary(objects[i]);
+
+    // check collisions between pairs of objects whose boxes overlap
+    long[] keys = overlaps.table;
+    for(int s = 0; s < keys.length; s++)
+    {
+      long key = keys[s];
+      if(key == PairSet.EMPTY)
+        continue;
+      Collider a = objects[(int)(key >> 32)], b = objects[(int)key];
+      float overlap = a.getOverlap(b);
+      if(overlap > 0)
+        contacts.touch(a, b, overlap);
+    }
+  }
+
+  /* SUBROUTINES */
+
+  private void sort(int axis)
+  {
+    float[] values = ends_value[axis];
+    int[] ids = ends_id[axis];
+
+    for(int i = 1; i < 2*n_objects; i++)
+    {
+      float value = values[i];
+      int id = ids[i], owner = id >> 1;
+      boolean is_max = ((id & 1) == 1);
+
+      int j = i;
+      while(j > 0 && values[j-1] > value)
+      {
+        int other_id = ids[j-1], other = other_id >> 1;
+        boolean other_is_max = ((other_id & 1) == 1);
+
+        // a minimum passing a maximum: the boxes may have started overlapping
+        if(!is_max && other_is_max)
+        {
+          if(boxesOverlap(owner, other) && overlaps.add(key(owner, other))
+              && listener != null)
+            listener.overlapBegin(objects[owner], objects[other]);
+        }
+
+        // a maximum passing a minimum: the boxes have stopped overlapping
+        else if(is_max && !other_is_max)
+        {
+          if(overlaps.remove(key(owner, other)) && listener != null)
+            listener.overlapEnd(objects[owner], objects[other]);
+        }
+
+        values[j] = values[j-1];
+        ids[j] = other_id;
+        j--;
+      }
+      values[j] = value;
+      ids[j] = id;
+    }
+  }
+
+  private static long key(int a, int b)
+  {
+    return (a < b) ? (((long)a << 32) | b) : (((long)b << 32) | a);
+  }
+
+  /**
+   * Open-addressing hash set of pairs of object indices packed into longs.
+   */
+  private static class PairSet
+  {
+    // constants
+    static final long EMPTY = -1L;
+
+    // attributes
+    long[] table = new long[256];
+    int size = 0;
+
+    // methods
+    PairSet()
+    {
+      Arrays.fill(table, EMPTY);
+    }
+
+    boolean add(long key)
+    {
+      // keep the table at most half full
+      if(2*(size + 1) > table.length)
+        grow();
+
+      int mask = table.length - 1;
+      for(int s = slot(key, mask); ; s = (s + 1) & mask)
+      {
+        if(table[s] == key)
+          return false;
+        if(table[s] == EMPTY)
+        {
+          table[s] = key;
+          size++;
+          return true;
+        }
+      }
+    }
+
+    boolean remove(long key)
+    {
+      int mask = table.length - 1;
+      int s = slot(key, mask);
+      while(table[s] != key)
+      {
+        if(table[s] == EMPTY)
+          return false;
+        s = (s + 1) & mask;
+      }
+
+      // shift back the keys which collided with the one removed
+      int hole = s;
+      for(s = (s + 1) & mask; table[s] != EMPTY; s = (s + 1) & mask)
+      {
+        int home = slot(table[s], mask);
+        if(((s - home) & mask) >= ((s - hole) & mask))
+        {
+          table[hole] = table[s];
+          hole = s;
+        }
+      }
+      table[hole] = EMPTY;
+      size--;
+      return true;
+    }
+
+    long[] involving(int id)
+    {
+      int n = 0;
+      for(long key : table)
+        if(key != EMPTY && ((int)(key >> 32) == id || (int)key == id))
+          n++;
+      long[] result = new long[n];
+      n = 0;
+      for(long key : table)
+        if(key != EMPTY && ((int)(key >> 32) == id || (int)key == id))
+          result[n++] = key;
+      return result;
+    }
+
+    private void grow()
+    {
+      long[] old = table;
+      table = new long[old.length * 2];
+      Arrays.fill(table, EMPTY);
+      size = 0;
+      for(long key : old)
+        if(key != EMPTY)
+          add(key);
+    }
+
+    private static int slot(long key, int mask)
+    {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int)(h >>> 32) & mask;
+    }
+  }
+}
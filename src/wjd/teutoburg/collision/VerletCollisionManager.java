@@ -0,0 +1,260 @@
+/*
+ Copyright (C) 2012 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.teutoburg.collision;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import wjd.math.Circle;
+import wjd.math.Rect;
+import wjd.teutoburg.simulation.Tile;
+
+/**
+ * Verlet neighbour lists on top of another broad-phase. Each object keeps a
+ * list of the objects that were within a "skin" distance of touching it when
+ * the lists were last built. As long as no object has moved (or grown) by
+ * more than half the skin since then, no pair missing from the lists can be
+ * touching, so only the pairs in the lists need to be tested.
+ *
+ * The underlying broad-phase is only asked for pairs when the lists are
+ * rebuilt, but its index is refreshed at each pass so that queries stay
+ * exact.
+ *
+ * @author wdyce
+ * @since Jan 21, 2013
+ */
+public class VerletCollisionManager extends ACollisionManager
+{
+  /* CONSTANTS */
+  public static final float DEFAULT_SKIN = Tile.SIZE.x * 0.5f;
+
+  /* ATTRIBUTES */
+  private final ACollisionManager index;
+  private final float skin, half_skin2;
+  // registered objects, and their shape when the lists were last built
+  private Collider[] objects = new Collider[64];
+  private float[] ref_x = new float[64], ref_y = new float[64],
+                  ref_radius = new float[64];
+  private int n_objects = 0;
+  private final Map<Collider, Integer> slots
+    = new IdentityHashMap<Collider, Integer>();
+  // neighbours of i with a greater index: neighbours[start[i] .. start[i+1])
+  private int[] neighbour_start = new int[65];
+  private int[] neighbours = new int[256];
+  private boolean lists_valid = false;
+  private int n_rebuilds = 0;
+  // rebuilding
+  private final Circle probe = new Circle();
+  private final NeighbourCollector collector = new NeighbourCollector();
+
+  /* METHODS */
+
+  // constructors
+
+  public VerletCollisionManager(Rect boundary_, ECollisionBackend backend)
+  {
+    this(boundary_, backend, DEFAULT_SKIN);
+  }
+
+  public VerletCollisionManager(Rect boundary_, ECollisionBackend backend,
+                                float skin_)
+  {
+    super(boundary_);
+    index = (ACollisionManager)backend.create(boundary_);
+    skin = skin_;
+    half_skin2 = (skin_ * 0.5f) * (skin_ * 0.5f);
+  }
+
+  // accessors
+
+  public int getNRebuilds()
+  {
+    return n_rebuilds;
+  }
+
+  public int getNCandidates()
+  {
+    return neighbour_start[n_objects];
+  }
+
+  // mutators
+
+  @Override
+  public void setContactCache(ContactCache contacts_)
+  {
+    super.setContactCache(contacts_);
+    index.setContactCache(contacts_);
+  }
+
+  /* IMPLEMENTS -- ICOLLISIONMANAGER */
+
+  @Override
+  public void visitInRect(Rect area, IColliderVisitor visitor)
+  {
+    index.visitInRect(area, visitor);
+  }
+
+  @Override
+  public void visitInCircle(Circle circle_query, IColliderVisitor visitor)
+  {
+    index.visitInCircle(circle_query, visitor);
+  }
+
+  @Override
+  public int findNearest(NearestSearch search)
+  {
+    return index.findNearest(search);
+  }
+
+  @Override
+  public void register(Collider c)
+  {
+    if(n_objects == objects.length)
+    {
+      int capacity = n_objects * 2;
+      objects = Arrays.copyOf(objects, capacity);
+      ref_x = Arrays.copyOf(ref_x, capacity);
+      ref_y = Arrays.copyOf(ref_y, capacity);
+      ref_radius = Arrays.copyOf(ref_radius, capacity);
+      neighbour_start = Arrays.copyOf(neighbour_start, capacity + 1);
+    }
+    slots.put(c, n_objects);
+    objects[n_objects++] = c;
+    index.register(c);
+    lists_valid = false;
+  }
+
+  @Override
+  protected void remove(Collider c)
+  {
+    Integer slot = slots.remove(c);
+    if(slot == null)
+      return;
+
+    // the last object takes the place of the one removed
+    int last = --n_objects;
+    if(slot != last)
+    {
+      objects[slot] = objects[last];
+      slots.put(objects[slot], slot);
+    }
+    objects[last] = null;
+    index.remove(c);
+    lists_valid = false;
+  }
+
+  @Override
+  protected void refresh()
+  {
+    index.refresh();
+  }
+
+  @Override
+  protected void generatePairs(ContactCache contacts)
+  {
+    index.refresh();
+
+    // check collisions with boundary
+    for(int i = 0; i < n_objects; i++)
+      checkBoundary(objects[i]);
+
+    // rebuild the lists if an object might have reached a pair not in them
+    if(!lists_valid || anyMovedTooFar())
+      rebuildLists();
+
+    // check collisions between pairs of neighbours
+    for(int i = 0; i < n_objects; i++)
+    {
+      Collider a = objects[i];
+      for(int n = neighbour_start[i]; n < neighbour_start[i+1]; n++)
+      {
+        Collider b = objects[neighbours[n]];
+        float overlap = a.getOverlap(b);
+        if(overlap > 0)
+          contacts.touch(a, b, overlap);
+      }
+    }
+  }
+
+  @Override
+  public void dispose()
+  {
+    index.dispose();
+  }
+
+  /* SUBROUTINES */
+
+  private boolean anyMovedTooFar()
+  {
+    for(int i = 0; i < n_objects; i++)
+    {
+      Circle c = objects[i].getCircle();
+      float dx = c.centre.x - ref_x[i], dy = c.centre.y - ref_y[i],
+            growth = Math.max(0.0f, c.radius - ref_radius[i]),
+            drift = (float)Math.sqrt(dx*dx + dy*dy) + growth;
+      if(drift*drift > half_skin2)
+        return true;
+    }
+    return false;
+  }
+
+  private void rebuildLists()
+  {
+    n_rebuilds++;
+    int n = 0;
+    for(int i = 0; i < n_objects; i++)
+    {
+      Circle c = objects[i].getCircle();
+      ref_x[i] = c.centre.x;
+      ref_y[i] = c.centre.y;
+      ref_radius[i] = c.radius;
+      neighbour_start[i] = n;
+
+      // anything within a skin of touching this object is a neighbour
+      probe.centre.reset(c.centre);
+      probe.radius = c.radius + skin;
+      collector.owner = i;
+      collector.n = n;
+      index.visitInCircle(probe, collector);
+      n = collector.n;
+    }
+    neighbour_start[n_objects] = n;
+    lists_valid = true;
+  }
+
+  /**
+   * Appends the neighbours found by a query to the lists, keeping only those
+   * with a greater index than the owner so that each pair is listed once.
+   */
+  private class NeighbourCollector implements IColliderVisitor
+  {
+    int owner, n;
+
+    @Override
+    public boolean visit(Collider c)
+    {
+      Integer slot = slots.get(c);
+      if(slot != null && slot > owner)
+      {
+        if(n == neighbours.length)
+          neighbours = Arrays.copyOf(neighbours, n * 2);
+        neighbours[n++] = slot;
+      }
+      return true;
+    }
+  }
+}
@@ -16,30 +16,52 @@
  */
 package wjd.teutoburg.quadtree;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import wjd.math.Circle;
 import wjd.math.Rect;
 import wjd.teutoburg.collision.Collider;
-import wjd.teutoburg.collision.ICollisionManager;
+import wjd.teutoburg.collision.ACollisionManager;
+import wjd.teutoburg.collision.ContactCache;
+import wjd.teutoburg.collision.IColliderVisitor;
+import wjd.teutoburg.collision.NearestSearch;
 
 /**
+ * Broad-phase backed by a loose Quad Tree, which adapts its depth to the local
+ * density of objects: well suited to battles where regiments bunch up.
  *
  * @author wdyce
  * @since Dec 13, 2012
  */
-public class QTCollisionManager implements ICollisionManager
+public class QTCollisionManager extends ACollisionManager
 {
   /* ATTRIBUTES */
   private QTNode quad_tree;
-  private Rect bounds;
+  private final Map<Collider, QTNode> locations 
+    = new HashMap<Collider, QTNode>();
+  private Collider[] objects = new Collider[64];
+  private int n_objects = 0;
+  // where each object is in the array above
+  private final Map<Collider, Integer> slots 
+    = new HashMap<Collider, Integer>();
+  // cursors which aren't being used by a query
+  private QTCursor[] free_cursors = new QTCursor[4];
+  private int n_free_cursors = 0;
   
   /* METHODS */
 
   // constructors
   public QTCollisionManager(Rect bounds_)
   {
-    this.bounds = bounds_;
-    quad_tree = new QTNode(bounds_);
+    this(bounds_, QTNode.NODE_CAPACITY, QTNode.MAX_DEPTH);
+  }
+  
+  public QTCollisionManager(Rect bounds_, int node_capacity, int max_depth)
+  {
+    super(bounds_);
+    quad_tree = new QTNode(bounds_, node_capacity, max_depth, locations);
   }
 
   // accessors
@@ -56,29 +78,126 @@ public class QTCollisionManager implements ICollisionManager
       @Override
       public Iterator<Collider> iterator()
       {
-        return new QTAreaChecker(quad_tree, area);
+        return new QTCursor().reset(quad_tree, area);
+      }
+    };
+  }
+
+  @Override
+  public Iterable<Collider> getInCircle(final Circle circle_query)
+  {
+    return new Iterable<Collider>()
+    {
+      @Override
+      public Iterator<Collider> iterator()
+      {
+        return new QTCursor().reset(quad_tree, circle_query);
       }
     };
   }
 
   @Override
-  public Iterable<Collider> getInCircle(Circle circle_query)
+  public void visitInRect(Rect area, IColliderVisitor visitor)
+  {
+    QTCursor cursor = acquireCursor().reset(quad_tree, area);
+    while(cursor.hasNext())
+      if(!visitor.visit(cursor.next()))
+        break;
+    releaseCursor(cursor);
+  }
+
+  @Override
+  public void visitInCircle(Circle circle_query, IColliderVisitor visitor)
+  {
+    QTCursor cursor = acquireCursor().reset(quad_tree, circle_query);
+    while(cursor.hasNext())
+      if(!visitor.visit(cursor.next()))
+        break;
+    releaseCursor(cursor);
+  }
+
+  @Override
+  public int findNearest(NearestSearch search)
   {
-    throw new UnsupportedOperationException("Not supported yet.");
+    quad_tree.findNearest(search);
+    return search.size();
   }
 
   @Override
   public void register(Collider c)
   {
+    if(n_objects == objects.length)
+    {
+      Collider[] grown = new Collider[n_objects * 2];
+      System.arraycopy(objects, 0, grown, 0, n_objects);
+      objects = grown;
+    }
+    slots.put(c, n_objects);
+    objects[n_objects++] = c;
     quad_tree.insert(c);
   }
 
   @Override
-  public void generateCollisions()
+  protected void remove(Collider c)
+  {
+    QTNode node = locations.remove(c);
+    if(node == null)
+      return;
+    node.remove(c);
+
+    // the last object takes the place of the one removed
+    int slot = slots.remove(c), last = --n_objects;
+    if(slot != last)
+    {
+      objects[slot] = objects[last];
+      slots.put(objects[slot], slot);
+    }
+    objects[last] = null;
+  }
+
+  @Override
+  protected void refresh()
+  {
+    // relocate objects that have left their node
+    for(int i = 0; i < n_objects; i++)
+    {
+      Collider c = objects[i];
+      QTNode node = locations.get(c);
+      if(!node.shouldHold(c))
+      {
+        node.remove(c);
+        quad_tree.insert(c);
+      }
+    }
+  }
+
+  @Override
+  protected void generatePairs(ContactCache contacts)
   {
-    throw new UnsupportedOperationException("Not supported yet.");
+    refresh();
+    
+    // check collisions with boundary
+    for(int i = 0; i < n_objects; i++)
+      checkBoundary(objects[i]);
+    
+    // check collisions between pairs of objects
+    quad_tree.collideSelf(contacts);
   }
 
+  /* SUBROUTINES */
 
+  private synchronized QTCursor acquireCursor()
+  {
+    // nested or concurrent queries each need a cursor of their own
+    return (n_free_cursors > 0) ? free_cursors[--n_free_cursors] 
+                                : new QTCursor();
+  }
 
+  private synchronized void releaseCursor(QTCursor cursor)
+  {
+    cursor.clear();
+    if(n_free_cursors == free_cursors.length)
+      free_cursors = Arrays.copyOf(free_cursors, n_free_cursors * 2);
+    free_cursors[n_free_cursors++] = cursor;
+  }
 }
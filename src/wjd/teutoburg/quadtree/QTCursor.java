@@ -0,0 +1,175 @@
+/*
+ Copyright (C) 2012 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.teutoburg.quadtree;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import wjd.math.Circle;
+import wjd.math.Rect;
+import wjd.teutoburg.collision.Collider;
+
+/**
+ * Spools through the objects of a Quad Tree which collide with a query area,
+ * or with a query circle if one is given (its bounding box is then used to
+ * prune the tree). The branches still to be explored are kept on an explicit
+ * stack, so a cursor can be reset and reused for any number of queries
+ * without allocating anything.
+ *
+ * @author wdyce
+ * @since Jan 19, 2013
+ */
+public class QTCursor implements Iterator<Collider>
+{
+  /* ATTRIBUTES */
+  // query
+  private final Rect query_area = new Rect();
+  private Circle query_circle = null;
+  // stack of nodes being explored, and the next child to explore for each
+  private QTNode[] nodes = new QTNode[QTNode.MAX_DEPTH + 1];
+  private int[] next_child = new int[QTNode.MAX_DEPTH + 1];
+  private int top = -1;
+  // objects of the node on top of the stack
+  private QTNode current = null;
+  private int next_object = 0;
+  // look-ahead
+  private Collider next_match = null;
+
+  /* METHODS */
+
+  // mutators
+
+  /**
+   * Start a query for the objects touching the area.
+   */
+  public QTCursor reset(QTNode root, Rect area)
+  {
+    clear();
+    query_area.reset(area.x, area.y, area.w, area.h);
+    query_circle = null;
+    return start(root);
+  }
+
+  /**
+   * Start a query for the objects touching the circle.
+   */
+  public QTCursor reset(QTNode root, Circle circle)
+  {
+    clear();
+    float r = circle.radius;
+    query_area.reset(circle.centre.x - r, circle.centre.y - r, 2*r, 2*r);
+    query_circle = circle;
+    return start(root);
+  }
+
+  /**
+   * Forget the current query, so as not to keep the tree alive.
+   */
+  public void clear()
+  {
+    for(int i = 0; i <= top; i++)
+      nodes[i] = null;
+    top = -1;
+    current = null;
+    next_match = null;
+    query_circle = null;
+  }
+
+  /* IMPLEMENTS -- ITERATOR<COLLIDER> */
+
+  @Override
+  public boolean hasNext()
+  {
+    return (next_match != null);
+  }
+
+  @Override
+  public Collider next()
+  {
+    if(next_match == null)
+      throw new NoSuchElementException();
+    Collider result = next_match;
+    next_match = findNext();
+    return result;
+  }
+
+  @Override
+  public void remove()
+  {
+    throw new UnsupportedOperationException("Remove is not supported.");
+  }
+
+  /* SUBROUTINES */
+
+  private QTCursor start(QTNode root)
+  {
+    if(root.getNSubtreeObjects() > 0 && root.intersects(query_area))
+      push(root);
+    next_match = findNext();
+    return this;
+  }
+
+  private void push(QTNode node)
+  {
+    if(++top == nodes.length)
+    {
+      nodes = Arrays.copyOf(nodes, top * 2);
+      next_child = Arrays.copyOf(next_child, top * 2);
+    }
+    nodes[top] = node;
+    next_child[top] = 0;
+    current = node;
+    next_object = 0;
+  }
+
+  private Collider findNext()
+  {
+    while(true)
+    {
+      // are there any more matching objects in the current node?
+      if(current != null)
+      {
+        while(next_object < current.getNObjects())
+        {
+          Collider c = current.getObject(next_object++);
+          if(query_circle == null
+              ? c.getCircle().collides(query_area)
+              : query_circle.collides(c.getCircle()))
+            return c;
+        }
+        current = null;
+      }
+
+      // if the stack is empty the entire tree has been explored
+      if(top < 0)
+        return null;
+
+      // otherwise go back up once every branch of a node has been explored
+      QTNode node = nodes[top];
+      if(node.isLeaf() || next_child[top] == 4)
+      {
+        nodes[top--] = null;
+        continue;
+      }
+
+      // or down into the next non-empty branch touching the query area
+      QTNode child = node.getChildTree(next_child[top]++);
+      if(child.getNSubtreeObjects() > 0 && child.intersects(query_area))
+        push(child);
+    }
+  }
+}
@@ -16,105 +16,405 @@
  */
 package wjd.teutoburg.quadtree;
 
+import java.util.Map;
+import wjd.math.Circle;
 import wjd.math.Rect;
+import wjd.math.V2;
 import wjd.teutoburg.collision.Collider;
+import wjd.teutoburg.collision.ContactCache;
+import wjd.teutoburg.collision.NearestSearch;
 
 /**
+ * A node of a "loose" Quad Tree: each node accepts any object whose centre
+ * lies in its area and whose radius fits inside the margin of its loose area,
+ * which is the area inflated by LOOSENESS. As a result an object is stored at
+ * a single node, chosen by its size and centre only, and can move a little
+ * without having to be relocated.
  *
  * @author wdyce
  * @since Dec 11, 2012
  */
-public class QTNode 
+public class QTNode
 {
   /* CONSTANTS */
   public static final int NODE_CAPACITY = 4;
-  
-  
+  public static final int MAX_DEPTH = 8;
+  public static final float LOOSENESS = 2.0f;
+
+
   /* ATTRIBUTES */
-  private final Collider[] objects = new Collider[NODE_CAPACITY];
-  private int n_objects = 0;
+  private Collider[] objects;
+  private int n_objects = 0, n_subtree = 0;
   private QTNode[] children;
-  final Rect area;
+  private final QTNode parent;
+  private final int depth, capacity, max_depth;
+  private final Map<Collider, QTNode> locations;
+  final Rect area, loose_area;
+  private final float margin;
   private boolean leaf = true;
-  
+
   /* METHODS */
 
   // constructors
-  public QTNode(Rect area_)
+  public QTNode(Rect area_, int capacity_, int max_depth_,
+                Map<Collider, QTNode> locations_)
+  {
+    this(area_, null, capacity_, max_depth_, locations_);
+  }
+
+  private QTNode(Rect area_, QTNode parent_, int capacity_, int max_depth_,
+                 Map<Collider, QTNode> locations_)
   {
     this.area = area_;
+    this.parent = parent_;
+    this.depth = (parent == null) ? 0 : parent.depth + 1;
+    this.capacity = capacity_;
+    this.max_depth = max_depth_;
+    this.locations = locations_;
+    this.objects = new Collider[capacity + 1];
+
+    // inflate the area to obtain the loose area
+    margin = area.w * (LOOSENESS - 1) * 0.5f;
+    loose_area = new Rect(area.x - margin, area.y - margin,
+                          area.w + 2*margin, area.h + 2*margin);
   }
 
   // accessors
-  
+
   public boolean intersects(Rect query)
   {
-    return area.collides(query);
+    // the root also holds any objects that have escaped the bounds
+    return (parent == null || loose_area.collides(query));
   }
-  
+
   public int getNObjects()
   {
     return n_objects;
   }
-  
+
+  public int getNSubtreeObjects()
+  {
+    return n_subtree;
+  }
+
   public Collider getObject(int i)
   {
-    return (i >= 0 && i < NODE_CAPACITY) ? objects[i] : null;
+    return (i >= 0 && i < n_objects) ? objects[i] : null;
   }
-  
+
   public boolean isLeaf()
   {
     return leaf;
   }
-  
+
   public QTNode getChildTree(int i)
   {
-    return (i >= 0 && i < 4) ? children[i] : null;
+    return (!leaf && i >= 0 && i < 4) ? children[i] : null;
+  }
+
+  /**
+   * Can the object stay in this node?
+   *
+   * @param c the object to check.
+   * @return true if the object's centre is in this node's area and its radius
+   * fits inside the margin of the loose area, or if this is the root.
+   */
+  public boolean holds(Collider c)
+  {
+    if(parent == null)
+      return true;
+    Circle circle = c.getCircle();
+    return (circle.radius <= margin
+            && circle.centre.x >= area.x && circle.centre.x < area.endx()
+            && circle.centre.y >= area.y && circle.centre.y < area.endy());
+  }
+
+  /**
+   * Is this the node in which the object should be stored?
+   *
+   * @param c the object to check.
+   * @return true if this node can hold the object but none of its children can.
+   */
+  public boolean shouldHold(Collider c)
+  {
+    return (holds(c) && (leaf || childFor(c) == null));
   }
+
   // mutators
-  
-  public boolean insert(Collider c)
+
+  /**
+   * Add an object to the deepest node of this subtree able to hold it.
+   *
+   * @param c the object to add, which this node must be able to hold.
+   */
+  public void insert(Collider c)
   {
-    // ignore objects outside of this quad's area
-    if(!c.getCircle().collides(area))
-      return false;
-    
-    // if this node's capacity has been reached, subdivide it
-    if(n_objects < NODE_CAPACITY)
+    n_subtree++;
+
+    // add to the appropriate child if there is one
+    if(!leaf)
     {
-      objects[n_objects] = c;
-      return true;
+      QTNode child = childFor(c);
+      if(child != null)
+      {
+        child.insert(c);
+        return;
+      }
     }
-    // otherwise we may need to subdivide
-    else if(leaf)
+
+    // otherwise keep the object here
+    add(c);
+
+    // if this node's capacity has been exceeded, subdivide it
+    if(leaf && n_objects > capacity && depth < max_depth)
       subdivide();
-      
-    // add to the first appropriate child instead
-    for(int i = 0; i < 4; i++)
-      if(children[i].insert(c))
-        return true;
-    
-    // point could not be added
-    return false;
   }
-  
+
+  /**
+   * Remove an object from this node, collapsing the highest ancestor whose
+   * subtree no longer holds more objects than a single node can. Finding the
+   * object is a linear scan, but only of the objects stored in this node.
+   *
+   * @param c the object to remove, which must be stored in this node.
+   */
+  public void remove(Collider c)
+  {
+    // swap the last object into the removed object's place
+    for(int i = 0; i < n_objects; i++) if(objects[i] == c)
+    {
+      objects[i] = objects[--n_objects];
+      objects[n_objects] = null;
+      break;
+    }
+
+    // update the counts, looking for nodes which have underflowed
+    QTNode underflow = null;
+    for(QTNode n = this; n != null; n = n.parent)
+    {
+      n.n_subtree--;
+      if(!n.leaf && n.n_subtree <= capacity)
+        underflow = n;
+    }
+
+    // merge the largest underflowed subtree into a single node
+    if(underflow != null)
+      underflow.merge();
+  }
+
   /* SUBROUTINES */
-  
+
+  private QTNode childFor(Collider c)
+  {
+    Circle circle = c.getCircle();
+    float centre_x = area.x + area.w * 0.5f,
+          centre_y = area.y + area.h * 0.5f;
+    int i = (circle.centre.y < centre_y)
+              ? ((circle.centre.x < centre_x) ? 0 : 1)
+              : ((circle.centre.x < centre_x) ? 3 : 2);
+    return (children[i].holds(c) ? children[i] : null);
+  }
+
+  private void add(Collider c)
+  {
+    if(n_objects == objects.length)
+    {
+      Collider[] grown = new Collider[n_objects * 2];
+      System.arraycopy(objects, 0, grown, 0, n_objects);
+      objects = grown;
+    }
+    objects[n_objects++] = c;
+    locations.put(c, this);
+  }
+
   private void subdivide()
   {
     leaf = false;
-    
+
     // local variables
-    float sub_w = area.w * 0.5f, 
+    float sub_w = area.w * 0.5f,
           sub_h = area.h * 0.5f,
           centre_x = area.x + sub_w,
           centre_y = area.y + sub_h;
-    
+
     // create children
     children = new QTNode[4];
-    children[0] = new QTNode(new Rect(area.x, area.y, sub_w, sub_h));
-    children[1] = new QTNode(new Rect(centre_x, area.y, sub_w, sub_h));
-    children[2] = new QTNode(new Rect(centre_x, centre_y, sub_w, sub_h));
-    children[3] = new QTNode(new Rect(area.x, centre_y, sub_w, sub_h));
+    children[0] = new QTNode(new Rect(area.x, area.y, sub_w, sub_h),
+                             this, capacity, max_depth, locations);
+    children[1] = new QTNode(new Rect(centre_x, area.y, sub_w, sub_h),
+                             this, capacity, max_depth, locations);
+    children[2] = new QTNode(new Rect(centre_x, centre_y, sub_w, sub_h),
+                             this, capacity, max_depth, locations);
+    children[3] = new QTNode(new Rect(area.x, centre_y, sub_w, sub_h),
+                             this, capacity, max_depth, locations);
+
+    // push down whichever objects fit into the new children
+    int kept = 0;
+    for(int i = 0; i < n_objects; i++)
+    {
+      Collider c = objects[i];
+      QTNode child = childFor(c);
+      if(child != null)
+        child.insert(c);
+      else
+        objects[kept++] = c;
+    }
+    for(int i = kept; i < n_objects; i++)
+      objects[i] = null;
+    n_objects = kept;
+  }
+
+  private void merge()
+  {
+    // pull up the contents of every child, then forget about them
+    for(int i = 0; i < 4; i++)
+      pullUp(children[i]);
+    children = null;
+    leaf = true;
+  }
+
+  private void pullUp(QTNode descendant)
+  {
+    for(int i = 0; i < descendant.n_objects; i++)
+      add(descendant.objects[i]);
+    if(!descendant.leaf)
+      for(int i = 0; i < 4; i++)
+        pullUp(descendant.children[i]);
+  }
+
+  //----------------------------------------------------------------------------
+  // QUERIES
+  //----------------------------------------------------------------------------
+
+  /**
+   * Feed the objects of this subtree to the search, visiting the nearest
+   * branches first and skipping any branch too far away to improve on what
+   * has already been found.
+   */
+  void findNearest(NearestSearch search)
+  {
+    for(int i = 0; i < n_objects; i++)
+      search.visit(objects[i]);
+
+    if(leaf)
+      return;
+
+    // as of the last refresh every object lies within its node's loose area,
+    // so the distance to it is a lower bound: an object which has since
+    // moved out of it may be missed, as by any other query
+    V2 centre = search.getCentre();
+    float d0 = children[0].distance2(centre), d1 = children[1].distance2(centre),
+          d2 = children[2].distance2(centre), d3 = children[3].distance2(centre);
+    
+    // visit the children in order of distance
+    for(int n = 0; n < 4; n++)
+    {
+      int nearest = 0;
+      float nearest_d = d0;
+      if(d1 < nearest_d) { nearest = 1; nearest_d = d1; }
+      if(d2 < nearest_d) { nearest = 2; nearest_d = d2; }
+      if(d3 < nearest_d) { nearest = 3; nearest_d = d3; }
+      if(nearest_d > search.getBound2())
+        return;
+      
+      if(children[nearest].n_subtree > 0)
+        children[nearest].findNearest(search);
+      switch(nearest)
+      {
+        case 0: d0 = Float.MAX_VALUE; break;
+        case 1: d1 = Float.MAX_VALUE; break;
+        case 2: d2 = Float.MAX_VALUE; break;
+        default: d3 = Float.MAX_VALUE; break;
+      }
+    }
+  }
+
+  private float distance2(V2 p)
+  {
+    float dx = Math.max(0, Math.max(loose_area.x - p.x, p.x - loose_area.endx())),
+          dy = Math.max(0, Math.max(loose_area.y - p.y, p.y - loose_area.endy()));
+    return dx*dx + dy*dy;
+  }
+
+  //----------------------------------------------------------------------------
+  // PAIR GENERATION
+  //----------------------------------------------------------------------------
+
+  /**
+   * Report each overlapping pair of objects in this subtree, visiting each
+   * pair exactly once.
+   */
+  void collideSelf(ContactCache contacts)
+  {
+    // pairs within this node
+    for(int i = 0; i < n_objects; i++)
+      for(int j = i + 1; j < n_objects; j++)
+        collide(objects[i], objects[j], contacts);
+
+    if(leaf)
+      return;
+
+    // pairs between this node and its descendants
+    for(int i = 0; i < n_objects; i++)
+      for(int c = 0; c < 4; c++)
+        children[c].collideSubtree(objects[i], contacts);
+
+    // pairs between different branches
+    for(int a = 0; a < 4; a++)
+      for(int b = a + 1; b < 4; b++)
+        children[a].collideTrees(children[b], contacts);
+
+    // pairs within each branch
+    for(int c = 0; c < 4; c++)
+      children[c].collideSelf(contacts);
+  }
+
+  private void collideSubtree(Collider a, ContactCache contacts)
+  {
+    // skip empty or distant branches
+    if(n_subtree == 0 || !a.getCircle().collides(loose_area))
+      return;
+
+    for(int i = 0; i < n_objects; i++)
+      collide(a, objects[i], contacts);
+
+    if(!leaf)
+      for(int c = 0; c < 4; c++)
+        children[c].collideSubtree(a, contacts);
+  }
+
+  private void collideTrees(QTNode other, ContactCache contacts)
+  {
+    // skip empty or distant branches
+    if(n_subtree == 0 || other.n_subtree == 0
+    || !loose_area.collides(other.loose_area))
+      return;
+
+    // pairs between the two nodes
+    for(int i = 0; i < n_objects; i++)
+      for(int j = 0; j < other.n_objects; j++)
+        collide(objects[i], other.objects[j], contacts);
+
+    // pairs between each node and the other's descendants
+    if(!other.leaf)
+      for(int i = 0; i < n_objects; i++)
+        for(int c = 0; c < 4; c++)
+          other.children[c].collideSubtree(objects[i], contacts);
+    if(!leaf)
+      for(int j = 0; j < other.n_objects; j++)
+        for(int c = 0; c < 4; c++)
+          children[c].collideSubtree(other.objects[j], contacts);
+
+    // pairs between the two sets of descendants
+    if(!leaf && !other.leaf)
+      for(int a = 0; a < 4; a++)
+        for(int b = 0; b < 4; b++)
+          children[a].collideTrees(other.children[b], contacts);
+  }
+
+  private static void collide(Collider a, Collider b, ContactCache contacts)
+  {
+    float overlap = a.getOverlap(b);
+    if(overlap > 0)
+      contacts.touch(a, b, overlap);
   }
 }
@@ -75,7 +75,10 @@ public class BarbarianRegiment extends RegimentAgent
 		  {
 			  faceTowards(nearestEnemy.getCircle().centre);
 			  
-			  if(n_visible_enemies > n_visible_allies / 2)// && n_visible_enemies < n_visible_allies)
+			  // spring the trap once enough romans are inside it
+			  int romans = getStrengthInView(Faction.ROMAN),
+			      barbarians = getStrengthInView(Faction.BARBARIAN) - getStrength();
+			  if(romans > barbarians / 2)
 			  {
 				  soundTheHorn();
 				  in_hiding = false;
@@ -28,7 +28,11 @@ import wjd.teutoburg.simulation.Tile;
  */
 public abstract class Faction 
 {
+  /* CONSTANTS */
+  public static final int N_FACTIONS = 2;
+  
   /* ATTRIBUTES */
+  public final int index;
   public final Colour colour_shield, colour_tunic, colour_face, colour_weapon, 
                       colour_imposter, colour_tunic_dead, colour_face_dead,
                       colour_imposter_dead, colour_shield_dead;
@@ -36,8 +40,10 @@ public abstract class Faction
   /* METHODS */
   
   // constructors
-  private Faction(Colour shield, Colour body, Colour head, Colour weapon)
+  private Faction(int index, Colour shield, Colour body, Colour head, 
+                  Colour weapon)
   {
+    this.index = index;
     colour_shield = shield;
     colour_tunic = body;
     colour_face = head;
@@ -60,7 +66,7 @@ public abstract class Faction
   //----------------------------------------------------------------------------
   // ROMANS
   //----------------------------------------------------------------------------
-  public static final Faction ROMAN = new Faction(
+  public static final Faction ROMAN = new Faction(0,
       Palette.ROMAN_SHIELD, Palette.ROMAN_BODY, Palette.ROMAN_HEAD, 
       Palette.ROMAN_WEAPON)
   {
@@ -89,7 +95,7 @@ public abstract class Faction
   //----------------------------------------------------------------------------
   // BARBARIANS
   //----------------------------------------------------------------------------
-  public static final Faction BARBARIAN = new Faction(
+  public static final Faction BARBARIAN = new Faction(1,
       Palette.BARBARIAN_SHIELD, Palette.BARBARIAN_BODY, Palette.BARBARIAN_HEAD,
       Palette.ROMAN_WEAPON)
   {
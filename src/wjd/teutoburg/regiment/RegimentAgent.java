@@ -29,8 +29,14 @@ import wjd.math.Rect;
 import wjd.math.V2;
 import wjd.teutoburg.collision.Agent;
 import wjd.teutoburg.collision.Collider;
+import wjd.teutoburg.collision.IColliderVisitor;
+import wjd.teutoburg.collision.ICollisionManager;
+import wjd.teutoburg.collision.RectQueryBatch;
+import wjd.teutoburg.simulation.DistanceField;
 import wjd.teutoburg.simulation.HornBlast;
 import wjd.teutoburg.simulation.Tile;
+import wjd.teutoburg.simulation.TileGrid;
+import wjd.teutoburg.simulation.TileStencil;
 import wjd.util.Timer;
 
 /**
@@ -72,6 +78,7 @@ public abstract class RegimentAgent extends Agent
   private final V2 grid_pos = new V2();
   public Tile tile;
   private boolean sharing_tile = false;
+  private final TileGrid.Neighbours neighbourhood;
   // organisation
   private Formation formation;
   // view
@@ -80,6 +87,13 @@ public abstract class RegimentAgent extends Agent
   // ai
   private final int PERCEPTION_RADIUS = (int)Tile.SIZE.x * 10;
   private final Rect perception_box = new Rect(PERCEPTION_RADIUS, PERCEPTION_RADIUS);
+  private final TileGrid.Range perceptRange;
+  // strength stamped onto the grid's influence map, over the cells which can
+  // see this regiment's tile, and where it was stamped
+  private final int perceptionCells 
+    = (int)(PERCEPTION_RADIUS * 0.5f * Tile.ISIZE.x);
+  private int influenceLayer = -1, influenceCol, influenceRow, 
+              influenceStrength;
 
   protected float nearestAllyDist2, 
 								nearestEnemyDist2;
@@ -94,6 +108,21 @@ public abstract class RegimentAgent extends Agent
                 n_active_enemies, 
                 n_active_allies, 
                 perceived_threat;
+  // perception through the collision manager's index
+  private ICollisionManager collisionManager = null;
+  // perception through a batch of queries answered for every regiment at once
+  private RectQueryBatch perceptionBatch = null;
+  private int perceptionQuery = -1;
+  private float[] perceptionDist2 = new float[16];
+  private final IColliderVisitor perceptVisitor = new IColliderVisitor()
+  {
+    @Override
+    public boolean visit(Collider other)
+    {
+      perceive(other, other.getCircle().centre.distance2(c.centre));
+      return true;
+    }
+  };
   // corpses
   private List<Cadaver> dead_pile;
   //communication
@@ -112,8 +141,10 @@ public abstract class RegimentAgent extends Agent
     this.initial_strength = start_strength;
     this.faction = faction;
     this.tile = tile_;
-    tile.agent = this;
+    tile.setRegiment(this);
     grid_pos.reset(c.centre).scale(Tile.ISIZE).floor();
+    perceptRange = tile.grid.createRange();
+    neighbourhood = tile.grid.createNeighbours(TileStencil.MOORE);
     
     // calculate unit positions based on the strength of the unit
     formation = faction.createFormation(this);
@@ -129,6 +160,7 @@ public abstract class RegimentAgent extends Agent
 
     // initialise status
     state = State.WAITING;
+    stampInfluence();
   }
 
   // accessors -- package
@@ -159,12 +191,97 @@ public abstract class RegimentAgent extends Agent
   }
   
   
+  // mutators -- public
+  
+  /**
+   * Perceive other regiments through the index of a collision manager rather
+   * than by scanning every tile in view, at any update for which no batched
+   * query has been queued.
+   */
+  public void setCollisionManager(ICollisionManager collisionManager_)
+  {
+    this.collisionManager = collisionManager_;
+  }
+  
+  /**
+   * Add this regiment's perception box to a batch of queries: the answer will
+   * be used instead of querying the collision manager at the next update.
+   */
+  public void queuePerception(RectQueryBatch batch)
+  {
+    perception_box.centrePos(c.centre);
+    perceptionBatch = batch;
+    perceptionQuery = batch.addQuery(perception_box);
+  }
+  
+  /**
+   * Free this regiment's tile and lift its influence, as it leaves the map.
+   */
+  public void leaveGrid()
+  {
+    tile.setRegiment(null);
+    liftInfluence();
+  }
+  
   // accessors -- protected
   
   protected boolean canSee(RegimentAgent a)
   {
     // override if needed!
-	  return true;
+	  return canSeeInto(!a.tile.isForestEmpty());
+  }
+  
+  /**
+   * Can regiments standing in the open, or in the woods, be seen? This must
+   * agree with canSee, as it is what the influence map is read with.
+   */
+  protected boolean canSeeInto(boolean woods)
+  {
+    // override if needed!
+    return true;
+  }
+  
+  /**
+   * The nearest enemy in view, as read from the enemy factions' distance 
+   * fields: this is the nearest by steps from tile to tile rather than as 
+   * the crow flies, and may not be nearestEnemy.
+   * 
+   * @return the enemy, or nearestEnemy if the fields know of none in view.
+   */
+  protected RegimentAgent getFieldEnemy()
+  {
+    TileGrid grid = tile.grid;
+    int id = getCentreCell(), best_steps = perceptionCells + 1;
+    RegimentAgent best = null;
+    for(int f = 0; f < Faction.N_FACTIONS; f++)
+    {
+      if(f == faction.index)
+        continue;
+      DistanceField field = grid.getDistanceField(f, canSeeInto(true));
+      int steps = field.getSteps(id);
+      if(steps != DistanceField.UNREACHED && steps < best_steps)
+      {
+        RegimentAgent r = field.getNearest(id);
+        if(r != null && isEnemy(r))
+        {
+          best = r;
+          best_steps = steps;
+        }
+      }
+    }
+    return (best != null) ? best : nearestEnemy;
+  }
+  
+  /**
+   * How much of a faction stood inside the perception box as the tick 
+   * started, whether this regiment can see it or not: this costs four 
+   * look-ups in the grid's summed tables whatever the size of the box.
+   * 
+   * @return the strength, this regiment's own included if of the faction.
+   */
+  protected int getStrengthInView(Faction f)
+  {
+    return tile.grid.getStrength(f, perception_box);
   }
   
   protected float getMaxTurn()
@@ -250,8 +367,8 @@ public abstract class RegimentAgent extends Agent
 	  	other.state = State.DEAD;
 	  	
 	  	// move in between the two
-		  temp1.reset(other.c.centre).sub(c.centre).scale(0.001f);
-		  speed.add(temp1);
+		  push((other.c.centre.x - c.centre.x) * 0.001f,
+		       (other.c.centre.y - c.centre.y) * 0.001f);
 		  
 		  // other regiment disbanded
 		  return false;
@@ -270,6 +387,7 @@ public abstract class RegimentAgent extends Agent
     // reset to new size
     strength = new_strength;
     attackRecharge.setMax((int)(ATTACK_INTERVAL / strength));
+    stampInfluence();
     
     // destroy the regiment if too many are dead
     if (strength == 0)
@@ -331,10 +449,11 @@ public abstract class RegimentAgent extends Agent
   {
 	  if(nearestEnemy != null)
 	  {
-		  if(turnTowardsGradually(nearestEnemy.getCircle().centre, getMaxTurn()))
+		  V2 target = getFieldEnemy().getCircle().centre;
+		  if(turnTowardsGradually(target, getMaxTurn()))
 		  {
-			  float nearestEnemyDist = (float)Math.sqrt(nearestEnemyDist2);
-			  float min = Math.min(getSpeedFactor() * t_delta, nearestEnemyDist);
+			  float enemyDist = target.distance(c.centre);
+			  float min = Math.min(getSpeedFactor() * t_delta, enemyDist);
 			  advance(min);
 		  }
 	  }
@@ -347,18 +466,12 @@ public abstract class RegimentAgent extends Agent
 
   protected EUpdateResult fleeing(int t_delta, Iterable<Tile> percepts)
   {
-  	// turn away from enemies
-	  if(n_visible_enemies > 0) for(Tile t : percepts)
+  	// turn away from the nearest enemy
+	  RegimentAgent enemy = (n_visible_enemies > 0) ? getFieldEnemy() : null;
+	  if(enemy != null)
 	  {
-		  if(t != tile)
-		  {
-		  	// specifically: turn away from barycentre of perceived enemies
-			  if(t.agent != null && this.isEnemy(t.agent) && t.agent.state != State.DEAD)
-			  {
-				  temp1.reset(c.centre).scale(2.0f).sub(t.agent.getCircle().centre);
-				  turnTowardsGradually(temp1, getMaxTurn());
-			  }
-		  }
+		  temp1.reset(c.centre).scale(2.0f).sub(enemy.getCircle().centre);
+		  turnTowardsGradually(temp1, getMaxTurn());
 	  }
 	  
 	  // otherwise turn towards nearest ally
@@ -446,20 +559,23 @@ public abstract class RegimentAgent extends Agent
 
 	  // choose action
 	  perception_box.centrePos(c.centre);
-	  Iterable<Tile> percepts = tile.grid.createSubGrid(perception_box);
+	  Iterable<Tile> percepts = perceptRange.cover(perception_box);
 	  cachePercepts(percepts);
-	  setHitableEnemies();
+	  forgetTheDead();
 	  if(ai(t_delta, percepts) == EUpdateResult.DELETE_ME)
 		  return EUpdateResult.DELETE_ME;
 
 	  // snap out of collisions
 	  if(sharing_tile)
 	  {      
-		  Tile t = tile.grid.gridToTile(grid_pos);
-		  if(t!= null && t.agent != null)
+		  int col = (int)grid_pos.x, row = (int)grid_pos.y;
+		  RegimentAgent other = tile.grid.validCell(col, row) 
+		                      ? tile.grid.getAgent(tile.grid.getId(col, row)) 
+		                      : null;
+		  if(other != null)
 		  {
-			  V2 push = c.centre.clone().sub(t.agent.c.centre).scale(0.001f);
-			  speed.add(push);
+			  push((c.centre.x - other.c.centre.x) * 0.001f,
+			       (c.centre.y - other.c.centre.y) * 0.001f);
 		  }
 	  }
 
@@ -532,9 +648,13 @@ public abstract class RegimentAgent extends Agent
     // fight enemies
     if(isEnemy(other_r) && other_r.state != State.DEAD)
       combat.add(other_r);
+    
+    // stand with allies
+    else if(isAlly(other_r) && other_r.state != State.DEAD)
+      alliesFormedAround.add(other_r);
       
     // reform with allies
-    else if(n_visible_enemies == 0 && isAlly(other_r) 
+    if(n_visible_enemies == 0 && isAlly(other_r) 
     		&& other_r.state == State.FLEEING && strength > other_r.strength)
     {
     	requistion(other_r);
@@ -553,27 +673,26 @@ public abstract class RegimentAgent extends Agent
     super.collisionEvent(other, overlap);
   }
   
+  @Override
+  public void contactEnd(Collider other)
+  {
+    // no longer in contact
+    combat.remove(other);
+    alliesFormedAround.remove(other);
+  }
+  
   /* SUBROUTINES */
   
-  private void setHitableEnemies()
+  private void forgetTheDead()
   {
-    // add new enemies to combat ; add new allies to alliesFormedAround
-    Iterable<Tile> neighbours = tile.grid.getNeighbours(tile, true);
-    for(Tile t : neighbours)
-    {
-      if(t.agent != null && isEnemy(t.agent) && t.agent.state != State.DEAD && t.agent.getCircle().collides(c))
-        combat.add(t.agent);
-      if(t.agent != null && t.agent != this && isAlly(t.agent) && t.agent.state != State.DEAD && t.agent.getCircle().collides(c))
-          alliesFormedAround.add(t.agent);
-    }
-    
+    // contacts with the dead end when they are removed from the simulation,
+    // but they should stop counting as soon as they fall
     RegimentAgent r;
-    // remove old enemies from combat if they're no longer in contact
     Iterator<RegimentAgent> it = combat.iterator();
     while(it.hasNext())
     {
     	r = it.next();
-		if(!r.getCircle().collides(c) || r.state == State.DEAD)
+		if(r.state == State.DEAD)
 			it.remove();
     }
     
@@ -581,7 +700,7 @@ public abstract class RegimentAgent extends Agent
     while(it.hasNext())
     {
     	r = it.next();
-		if(!r.getCircle().collides(c) || r.state == State.DEAD)
+		if(r.state == State.DEAD)
 			it.remove();
     }
   }
@@ -590,39 +709,51 @@ public abstract class RegimentAgent extends Agent
   {
     // have we moved into a new tile?
     grid_pos.reset(c.centre).scale(Tile.ISIZE).floor();
-    if (grid_pos.x != tile.grid_position.x || grid_pos.y != tile.grid_position.y)
+    if (grid_pos.x != tile.getCol() || grid_pos.y != tile.getRow())
     {
       // tile outside of grid!
-      if(!tile.grid.validGridPos(grid_pos))
+      TileGrid grid = tile.grid;
+      int col = (int)grid_pos.x, row = (int)grid_pos.y;
+      if(!grid.validCell(col, row))
         return;
-      
-      Tile new_tile = tile.grid.tiles[(int) grid_pos.y][(int) grid_pos.x];
 
       // try to claim new tile
-      if (new_tile.setRegiment(this))
+      if (grid.setRegiment(grid.getId(col, row), this))
       {
         // success :)
         sharing_tile = false;
         tile.setRegiment(null);
-        tile = new_tile;
+        tile = grid.getTile(col, row);
+        stampInfluence();
       }
 
       // failure :(
       else
       {
-        // try to claim neighbouring tile instead
+        // try to claim neighbouring tile instead, keeping a Tile of our own
+        // rather than the neighbourhood's view
         sharing_tile = true;
-        for(Tile t : new_tile.grid.getNeighbours(new_tile, true))
+        for(Tile t : neighbourhood.around(col, row))
           if(t.setRegiment(this))
           {
             tile.setRegiment(null);
-            tile = t;
+            tile = grid.getTile(t.getCol(), t.getRow());
+            stampInfluence();
             break;
           }
       }
     }
   }
   
+  /**
+   * Find the nearest regiments in view and count the active ones, passing
+   * each regiment in view to perceive(). They are taken from the first of
+   * these available:
+   * - the answer to the query queued in a RectQueryBatch, which the
+   * SimulationScene does for every regiment at every tick;
+   * - otherwise the collision manager, if one has been set;
+   * - otherwise the tiles in view.
+   */
   protected void cachePercepts(Iterable<Tile> percepts)
   {
     // reset
@@ -633,64 +764,187 @@ public abstract class RegimentAgent extends Agent
 	  n_visible_enemies = n_visible_allies = n_active_enemies = n_active_allies = 0;
     
     // check if we're in the woods
-    in_woods = !(tile.forest_amount.isEmpty());
+    in_woods = tile.grid.getForestAnalysis().isWooded(tile.getId());
+    
+    // how many can be seen is read straight from the influence map
+    readInfluence();
+    
+    // use the answer to a batched query if there is one, but only once
+    if(perceptionBatch != null)
+    {
+      cacheBatchedPercepts();
+      perceptionBatch = null;
+      return;
+    }
+    
+    // nobody in view: nothing more to find
+    if(n_visible_enemies == 0 && n_visible_allies == 0)
+      return;
+    
+    // otherwise ask the collision manager if there is one
+    if(collisionManager != null)
+    {
+      collisionManager.visitInRect(perception_box, perceptVisitor);
+      return;
+    }
     
-    // check all tiles in view 
+    // otherwise check all tiles in view
     for(Tile t : percepts)
     {
-      // skip if dead or non visible or self
-      if(t.agent == this || t.agent == null || !canSee(t.agent) 
-         || t.agent.state == State.DEAD)
-    	  continue;
-
-      RegimentAgent r = t.agent;
-
-      // cache nearest enemy
-      if(isEnemy(r))
+      RegimentAgent r = t.getAgent();
+      if(r != null)
+        perceive(r, r.c.centre.distance2(c.centre));
+    }
+  }
+  
+  private void cacheBatchedPercepts()
+  {
+    // every regiment in view is in the slice, so the nearest ones are too
+    int n_results = perceptionBatch.getNResults(perceptionQuery);
+    if(n_results > perceptionDist2.length)
+      perceptionDist2 
+        = new float[Math.max(n_results, 2*perceptionDist2.length)];
+    perceptionBatch.getDistances2(perceptionQuery, c.centre.x, c.centre.y, 
+                                  perceptionDist2);
+    for(int i = 0; i < n_results; i++)
+      perceive(perceptionBatch.getResult(perceptionQuery, i), 
+               perceptionDist2[i]);
+  }
+  
+  /**
+   * Count a regiment in view, keeping it if it is the nearest of its kind
+   * found so far: every way of perceiving comes down to this.
+   * 
+   * @param other any collider, ignored unless it is a regiment in view.
+   * @param dist2 its squared distance from this regiment's centre.
+   */
+  private void perceive(Collider other, float dist2)
+  {
+    if(!perceives(other))
+      return;
+    RegimentAgent r = (RegimentAgent)other;
+    
+    if(isEnemy(r))
+    {
+      if(isActive(r))
+        n_active_enemies += r.strength;
+      if(dist2 < nearestEnemyDist2)
       {
-    	  float dist2 = r.getCircle().centre.distance2(c.centre);
-    	  if(dist2 < nearestEnemyDist2)
-    	  {
-    		  nearestEnemy = r;
-    		  nearestEnemyDist2 = dist2;
-    		  n_active_enemies += r.strength;
-    	  }
-    	  n_visible_enemies += r.strength;
+        nearestEnemy = r;
+        nearestEnemyDist2 = dist2;
       }
-
-      // cache allies
-      else if(isAlly(r))
+    }
+    else if(isAlly(r))
+    {
+      if(dist2 < nearestAllyDist2)
       {
-      	// nearest allies
-    	  float dist2 = r.getCircle().centre.distance2(c.centre);
-    	  if(dist2 < nearestAllyDist2)
-    	  {
-    		  nearestAlly = r;
-    		  nearestAllyDist2 = dist2;
-    	  }
-    	  // nearest active allies
-    	  if(r.state != State.WAITING 
-    	  		&& r.state != State.DEAD 
-    	  		&& r.state != State.FLEEING 
-    	  		&& dist2 < nearestActivAllyDist2)
-    	  {
-    		  nearestActivAlly = r;
-    		  nearestActivAllyDist2 = dist2;
-    		  n_active_allies += r.strength;
-    	  }
-    	  
-    	  // nearest fleeing allies
-    	  if(r.state == State.FLEEING)
-    	  {
-    	  	nearestFleeingAlly = r;
-    	  }
-    	  
-    	  n_visible_allies += r.strength;
+        nearestAlly = r;
+        nearestAllyDist2 = dist2;
       }
+      if(isActive(r))
+      {
+        n_active_allies += r.strength;
+        if(dist2 < nearestActivAllyDist2)
+        {
+          nearestActivAlly = r;
+          nearestActivAllyDist2 = dist2;
+        }
+      }
+      if(r.state == State.FLEEING)
+        nearestFleeingAlly = r;
     }
-    perceived_threat =  n_visible_enemies - n_visible_allies;
   }
   
+  private boolean perceives(Collider other)
+  {
+    // only regiments in the perception box are perceived
+    if(other == this || !(other instanceof RegimentAgent))
+      return false;
+    RegimentAgent r = (RegimentAgent)other;
+    V2 p = r.c.centre;
+    return (r.state != State.DEAD && canSee(r)
+            && p.x >= perception_box.x && p.x <= perception_box.endx()
+            && p.y >= perception_box.y && p.y <= perception_box.endy());
+  }
+  
+  private static boolean isActive(RegimentAgent r)
+  {
+    return (r.state != State.WAITING && r.state != State.DEAD 
+            && r.state != State.FLEEING);
+  }
+
+  private static int getInfluenceLayer(Faction f, boolean woods)
+  {
+    return 2*f.index + (woods ? 1 : 0);
+  }
+
+  private void liftInfluence()
+  {
+    if(influenceLayer >= 0)
+    {
+      TileGrid grid = tile.grid;
+      grid.stampInfluence(influenceLayer, influenceCol, influenceRow,
+                          perceptionCells, -influenceStrength);
+      grid.addStrength(faction.index, grid.getId(influenceCol, influenceRow),
+                       -influenceStrength);
+    }
+    influenceLayer = -1;
+  }
+
+  private void stampInfluence()
+  {
+    // move the stamp to where we are now, with our current strength
+    liftInfluence();
+    if(strength == 0)
+      return;
+    influenceLayer = getInfluenceLayer(faction, !tile.isForestEmpty());
+    influenceCol = tile.getCol();
+    influenceRow = tile.getRow();
+    influenceStrength = strength;
+    tile.grid.stampInfluence(influenceLayer, influenceCol, influenceRow,
+                             perceptionCells, influenceStrength);
+    tile.grid.addStrength(faction.index, tile.getId(), influenceStrength);
+  }
+
+  /**
+   * @return the id of the cell this regiment's centre is in, or of the 
+   * nearest one on the grid.
+   */
+  protected int getCentreCell()
+  {
+    TileGrid grid = tile.grid;
+    int col = Math.min((int)(c.centre.x * Tile.ISIZE.x), grid.getNCols() - 1),
+        row = Math.min((int)(c.centre.y * Tile.ISIZE.y), grid.getNRows() - 1);
+    return grid.getId(Math.max(col, 0), Math.max(row, 0));
+  }
+
+  private void readInfluence()
+  {
+    // the cell our own stamp is centred on: its tiles are those which see
+    // this cell, so the influence there is the strength in view
+    TileGrid grid = tile.grid;
+    int id = tile.getId();
+
+    n_visible_enemies = n_visible_allies = 0;
+    for(int f = 0; f < Faction.N_FACTIONS; f++)
+    for(int woods = 0; woods < 2; woods++)
+    {
+      if(!canSeeInto(woods == 1))
+        continue;
+      int amount = grid.getInfluence(2*f + woods, id);
+      if(f == faction.index)
+        n_visible_allies += amount;
+      else
+        n_visible_enemies += amount;
+    }
+
+    // don't count ourselves, stamped on the very cell being read
+    if(influenceLayer >= 0 && canSeeInto(influenceLayer % 2 == 1))
+      n_visible_allies -= influenceStrength;
+
+    perceived_threat =  n_visible_enemies - n_visible_allies;
+  }
+
   /* COMBAT */
   
   protected EUpdateResult melee(RegimentAgent enemy)
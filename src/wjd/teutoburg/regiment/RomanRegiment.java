@@ -18,7 +18,10 @@ package wjd.teutoburg.regiment;
 
 import wjd.amb.control.EUpdateResult;
 import wjd.math.V2;
+import wjd.teutoburg.simulation.FlowField;
 import wjd.teutoburg.simulation.Tile;
+import wjd.teutoburg.simulation.TileGrid;
+import wjd.teutoburg.simulation.TileStencil;
 import wjd.util.Timer;
 
 /**
@@ -57,6 +60,9 @@ public class RomanRegiment extends RegimentAgent
   /* ATTRIBUTES */
   protected Timer defendingAgainstNobody = new Timer(10000);
   protected Timer rallyingWithNobody = new Timer(2000);
+  private final TileGrid.Neighbours sides;
+  // the way north, out of the forest, shared by every Roman regiment
+  private final FlowField marchField;
   
   /* METHODS */
 
@@ -65,6 +71,8 @@ public class RomanRegiment extends RegimentAgent
   public RomanRegiment(V2 position, Tile t, Faction faction)
   {
     super(position, REGIMENT_SIZE, t, faction);
+    sides = t.grid.createNeighbours(TileStencil.VON_NEUMANN);
+    marchField = t.grid.getFlowField(0, 0, t.grid.getNCols() - 1, 0);
     
     // initialise status
     state = RomanState.MARCHING;
@@ -73,11 +81,11 @@ public class RomanRegiment extends RegimentAgent
   /* IMPLEMENTS -- REGIMENTAGENT */
   
   @Override
-  protected boolean canSee(RegimentAgent a)
+  protected boolean canSeeInto(boolean woods)
   {
     // FIXME - not sure this is exactly what we want: rather it is a state
     // we enter after we have first sighted an enemy
-	  return (heardHorn != null || a.tile.forest_amount.isEmpty());
+	  return (heardHorn != null || !woods);
   }
 
   
@@ -112,8 +120,6 @@ public class RomanRegiment extends RegimentAgent
   
   protected EUpdateResult marching(int t_delta, Iterable<Tile> percepts)
   {
-	  V2 escape_direction = getCircle().centre.clone().add(0, -10);
-	  
 	  if(nearestEnemy != null && heardHorn == null && soundedHorn == null)
 	  {
 		  soundTheHorn();
@@ -122,35 +128,17 @@ public class RomanRegiment extends RegimentAgent
 	  {
 		  state = RomanState.RALLYING;
 	  }
-	  else if(!isFormedUp() && tile.forest_amount.balance() < 0.2)
+	  else if(!isFormedUp() && tile.getForest() < 0.2)
 	  {
 		  setFormedUp(true);
 	  }
 	  else
 	  {
-		  V2 new_direction = escape_direction.clone(), tmp;
-		  int nbPossibleNeigh = 1;
-		  for(Tile t : percepts)
-		  {
-			  if(	t != tile 
-					&& t.pixel_position.y >= tile.pixel_position.y
-					&& t.pixel_position.x != tile.pixel_position.x)
-			  {
-				  nbPossibleNeigh++;
-				  if(!(t.forest_amount.isEmpty()))
-				  {
-					  tmp = new V2(t.pixel_position, c.centre);
-					  tmp.normalise();
-					  tmp.scale(t.forest_amount.balance());
-					  new_direction.add(tmp);
-					  nbPossibleNeigh--;
-				  }
-			  }
-		  }
-		  if(nbPossibleNeigh == 1)
-			  faceTowards(escape_direction);
-		  else
-			  faceTowards(new_direction);
+		  // head north, around the thickest of the woods, or straight north 
+		  // once on the northern edge
+		  if(!marchField.getDirection(getCentreCell(), temp1))
+			  temp1.xy(0, -1);
+		  faceTowards(temp1.scale(10).add(c.centre));
 		  advance(getSpeedFactor() * t_delta);
 	  }
 	  return EUpdateResult.CONTINUE;
@@ -211,11 +199,11 @@ public class RomanRegiment extends RegimentAgent
 	  {
 		  Tile tileToFace = null;
 		  if(alliesFormedAround.size() == 3)
-			  for(Tile t : tile.grid.getNeighbours(tile, false))
-				  if(t.agent == null)
-					  tileToFace = t;
+			  for(Tile t : sides.around(tile))
+				  if(t.getAgent() == null)
+					  tileToFace = tile.grid.getTile(t.getCol(), t.getRow());
 
-		  if(tile.forest_amount.balance() < 0.2 && !isFormedUp())
+		  if(tile.getForest() < 0.2 && !isFormedUp())
 		  {
 			  setFormedUp(true);
 			  if(tileToFace != null)
@@ -234,7 +222,7 @@ public class RomanRegiment extends RegimentAgent
 			  else if(nearestEnemy != null) // I see an enemy
 			  {
 				  defendingAgainstNobody.empty();
-				  faceTowards(nearestEnemy.getCircle().centre);
+				  faceTowards(getFieldEnemy().getCircle().centre);
 			  }
 			  else // I can't see an enemy
 			  {
@@ -252,7 +240,7 @@ public class RomanRegiment extends RegimentAgent
   @Override
   protected EUpdateResult ai(int t_delta, Iterable<Tile> percepts)
   {
-	  if(in_woods && isFormedUp() && tile.forest_amount.balance() > 0.4)
+	  if(in_woods && isFormedUp() && tile.getForest() > 0.4)
 	  {
 		  setFormedUp(false);
 	  }
@@ -367,10 +355,10 @@ public class RomanRegiment extends RegimentAgent
 	  }
 	  else if(alliesFormedAround.size() == 1)
 	  {
-		  Iterable<Tile> neig = tile.grid.getNeighbours(tile, false);
-		  for(Tile t : neig)
+		  for(Tile t : sides.around(tile))
 		  {
-			  if(t.agent != null && isAlly(t.agent) && t.agent.alliesFormedAround.size() >= 2)
+			  RegimentAgent r = t.getAgent();
+			  if(r != null && isAlly(r) && r.alliesFormedAround.size() >= 2)
 				  return true;
 		  }
 	  }
@@ -380,25 +368,23 @@ public class RomanRegiment extends RegimentAgent
   private void formMetaTurtle(int t_delta, Iterable<Tile> percepts)
   {
 	  // TODO : setFormedUp(false) when relaying ?
-	  V2 new_direction = c.centre.clone();
+	  V2 new_direction = temp2.reset(c.centre);
 	  for(Tile t : percepts)
 	  {
-		  if(t != tile)
+		  if(!t.equals(tile))
 		  {
-			  if(t.agent != null && this.isAlly(t.agent))
+			  RegimentAgent r = t.getAgent();
+			  if(r != null && this.isAlly(r))
 			  {
-				  temp1.reset(t.agent.getCircle().centre).sub(c.centre);
+				  temp1.reset(r.getCircle().centre).sub(c.centre);
 				  new_direction.add(temp1.norm(temp1.norm() / Tile.DIAGONAL));
 			  }
-			  if(!(t.forest_amount.isEmpty()))
-			  {
-				  t.getCentrePosition(temp1);
-				  temp2.reset(c.centre);
-				  new_direction.add(temp2.sub(temp1).normalise().scale(t.forest_amount.balance()));
-			  }
 		  }
 
 	  }
+	  // keep out of the woods around
+	  new_direction.add(
+	    tile.grid.getForestAnalysis().getSlope(getCentreCell(), temp1));
 	  faceTowards(new_direction);
 	  advance(getSpeedFactor() * t_delta);
   }
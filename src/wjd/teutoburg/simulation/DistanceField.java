@@ -0,0 +1,136 @@
+/*
+ Copyright (C) 2012 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.teutoburg.simulation;
+
+import java.util.Arrays;
+import wjd.teutoburg.regiment.RegimentAgent;
+
+/**
+ * For each cell of a TileGrid, the nearest cell on which a regiment of a
+ * given faction stands, and how many steps away it is, a step being a move
+ * to any of the 8 surrounding cells. The field is spread from every such
+ * cell at once by a breadth-first search, so it costs the same whatever the
+ * number of regiments.
+ *
+ * @author wdyce
+ * @since Jan 29, 2013
+ */
+public class DistanceField
+{
+  /* CONSTANTS */
+  public static final int UNREACHED = -1;
+
+  /* ATTRIBUTES */
+  private final TileGrid grid;
+  private final int faction;
+  // are regiments standing in the woods counted?
+  private final boolean woods;
+  // nearest regiment's cell and how far it is, by cell
+  private final int[] source, steps;
+  private final int[] queue;
+
+  /* METHODS */
+
+  // constructors
+
+  DistanceField(TileGrid grid, int faction, boolean woods)
+  {
+    this.grid = grid;
+    this.faction = faction;
+    this.woods = woods;
+    int n_cells = grid.getNCols() * grid.getNRows();
+    source = new int[n_cells];
+    steps = new int[n_cells];
+    queue = new int[n_cells];
+    Arrays.fill(source, UNREACHED);
+    Arrays.fill(steps, UNREACHED);
+  }
+
+  // accessors
+
+  /**
+   * @return the id of the nearest cell a regiment stood on when the field
+   * was spread, or UNREACHED if there were none.
+   */
+  public int getSource(int id)
+  {
+    return source[id];
+  }
+
+  /**
+   * @return how many steps away the nearest regiment stood, or UNREACHED.
+   */
+  public int getSteps(int id)
+  {
+    return steps[id];
+  }
+
+  /**
+   * @return the regiment now standing where the nearest one stood when the
+   * field was spread, if it is of the same faction and still alive, or null.
+   */
+  public RegimentAgent getNearest(int id)
+  {
+    int from = source[id];
+    if(from == UNREACHED || grid.getStrength(faction, from) == 0)
+      return null;
+    RegimentAgent r = grid.getAgent(from);
+    return (r != null && r.getFaction().index == faction) ? r : null;
+  }
+
+  // mutators
+
+  /**
+   * Spread the field again from where the faction's regiments stand now.
+   */
+  void spread()
+  {
+    Arrays.fill(source, UNREACHED);
+    Arrays.fill(steps, UNREACHED);
+
+    // every cell with a regiment on it is a source
+    int head = 0, tail = 0;
+    for(int id = 0; id < source.length; id++)
+      if(grid.getStrength(faction, id) > 0
+      && (woods || grid.getForest(id) <= 0))
+      {
+        source[id] = id;
+        steps[id] = 0;
+        queue[tail++] = id;
+      }
+
+    // each cell reached passes its source on to the cells around it
+    TileStencil stencil = TileStencil.MOORE;
+    while(head < tail)
+    {
+      int id = queue[head++],
+          col = grid.getCol(id), row = grid.getRow(id);
+      for(int i = 0; i < stencil.size(); i++)
+      {
+        int n_col = col + stencil.d_col[i], n_row = row + stencil.d_row[i];
+        if(!grid.validCell(n_col, n_row))
+          continue;
+        int n = grid.getId(n_col, n_row);
+        if(steps[n] != UNREACHED)
+          continue;
+        steps[n] = steps[id] + 1;
+        source[n] = source[id];
+        queue[tail++] = n;
+      }
+    }
+  }
+}
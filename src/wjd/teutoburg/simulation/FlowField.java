@@ -0,0 +1,242 @@
+/*
+ Copyright (C) 2012 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.teutoburg.simulation;
+
+import java.util.Arrays;
+import wjd.math.V2;
+
+/**
+ * The cheapest way from every cell of a TileGrid to a rectangle of goal
+ * cells, crossing forest being dearer the thicker it is. The cost of
+ * reaching the goal from each cell is integrated outwards from the goal, and
+ * each cell then points to its cheapest neighbour, so any number of
+ * regiments can share one field, each finding its way with a single look-up.
+ *
+ * The field is only worked out again when it is read after its goal or the
+ * forest has changed.
+ *
+ * @author wdyce
+ * @since Jan 30, 2013
+ */
+public class FlowField
+{
+  /* CONSTANTS */
+  public static final float FOREST_PENALTY = 4.0f;
+  private static final int NO_WAY = -1;
+  private static final TileStencil STENCIL = TileStencil.MOORE;
+  private static final float[] STEP_LENGTH = new float[STENCIL.size()],
+                               STEP_X = new float[STENCIL.size()],
+                               STEP_Y = new float[STENCIL.size()];
+  static
+  {
+    for(int i = 0; i < STENCIL.size(); i++)
+    {
+      int dx = STENCIL.getDCol(i), dy = STENCIL.getDRow(i);
+      STEP_LENGTH[i] = (float)Math.sqrt(dx*dx + dy*dy);
+      STEP_X[i] = dx / STEP_LENGTH[i];
+      STEP_Y[i] = dy / STEP_LENGTH[i];
+    }
+  }
+
+  /* ATTRIBUTES */
+  private final TileGrid grid;
+  // goal cells, bounds included
+  private int min_col, min_row, max_col, max_row;
+  // forest the field was worked out for, or -1 if it needs working out
+  private int forest_version = -1;
+  // integration field: cost of reaching the goal from each cell
+  private final float[] cost;
+  // direction field: step towards the cheapest neighbour, from each cell
+  private final byte[] step;
+  // binary heap of cells still to settle, by cost
+  private float[] heap_cost;
+  private int[] heap_id;
+  private int heap_size;
+
+  /* METHODS */
+
+  // constructors
+
+  FlowField(TileGrid grid, int min_col, int min_row, int max_col, int max_row)
+  {
+    this.grid = grid;
+    int n_cells = grid.getNCols() * grid.getNRows();
+    cost = new float[n_cells];
+    step = new byte[n_cells];
+    heap_cost = new float[n_cells];
+    heap_id = new int[n_cells];
+    setGoal(min_col, min_row, max_col, max_row);
+  }
+
+  // accessors
+
+  public boolean hasGoal(int min_col_, int min_row_, int max_col_,
+                         int max_row_)
+  {
+    return (min_col == min_col_ && min_row == min_row_
+            && max_col == max_col_ && max_row == max_row_);
+  }
+
+  /**
+   * @return the cost of reaching the goal from a cell, or
+   * Float.POSITIVE_INFINITY if it cannot be reached.
+   */
+  public float getCost(int id)
+  {
+    integrateIfStale();
+    return cost[id];
+  }
+
+  /**
+   * Which way should a regiment on the given cell go?
+   *
+   * @param result set to a unit vector towards the next cell on the way.
+   * @return false, leaving result untouched, if the cell is a goal or the
+   * goal cannot be reached from it.
+   */
+  public boolean getDirection(int id, V2 result)
+  {
+    integrateIfStale();
+    int i = step[id];
+    if(i == NO_WAY)
+      return false;
+    result.xy(STEP_X[i], STEP_Y[i]);
+    return true;
+  }
+
+  // mutators
+
+  public void setGoal(int min_col_, int min_row_, int max_col_, int max_row_)
+  {
+    if(hasGoal(min_col_, min_row_, max_col_, max_row_))
+      return;
+    min_col = min_col_;
+    min_row = min_row_;
+    max_col = max_col_;
+    max_row = max_row_;
+    forest_version = -1;
+  }
+
+  /* SUBROUTINES */
+
+  private void integrateIfStale()
+  {
+    if(forest_version != grid.getForestVersion())
+      integrate();
+  }
+
+  private void integrate()
+  {
+    forest_version = grid.getForestVersion();
+    Arrays.fill(cost, Float.POSITIVE_INFINITY);
+    Arrays.fill(step, (byte)NO_WAY);
+
+    // start from every goal cell on the grid
+    heap_size = 0;
+    for(int row = Math.max(min_row, 0);
+        row <= Math.min(max_row, grid.getNRows() - 1); row++)
+    for(int col = Math.max(min_col, 0);
+        col <= Math.min(max_col, grid.getNCols() - 1); col++)
+    {
+      int id = grid.getId(col, row);
+      cost[id] = 0.0f;
+      push(id, 0.0f);
+    }
+
+    // settle the cheapest cell, then offer the way through it to the cells
+    // around it: a cell may be pushed again if a cheaper way is found, in
+    // which case the older entry is stale and skipped
+    while(heap_size > 0)
+    {
+      float c = heap_cost[0];
+      int id = pop();
+      if(c > cost[id])
+        continue;
+      int col = grid.getCol(id), row = grid.getRow(id);
+      float here = cellCost(id);
+      for(int i = 0; i < STENCIL.size(); i++)
+      {
+        int n_col = col - STENCIL.getDCol(i), n_row = row - STENCIL.getDRow(i);
+        if(!grid.validCell(n_col, n_row))
+          continue;
+        int n = grid.getId(n_col, n_row);
+        float through = c + STEP_LENGTH[i] * 0.5f * (here + cellCost(n));
+        if(through < cost[n])
+        {
+          // the neighbour is offset by -d from here, so steps by +d to get here
+          cost[n] = through;
+          step[n] = (byte)i;
+          push(n, through);
+        }
+      }
+    }
+  }
+
+  private float cellCost(int id)
+  {
+    return 1.0f + FOREST_PENALTY * grid.getForest(id);
+  }
+
+  private void push(int id, float c)
+  {
+    if(heap_size == heap_id.length)
+    {
+      heap_id = Arrays.copyOf(heap_id, heap_size * 2);
+      heap_cost = Arrays.copyOf(heap_cost, heap_size * 2);
+    }
+
+    // sift up
+    int i = heap_size++;
+    while(i > 0)
+    {
+      int parent = (i - 1) >>> 1;
+      if(heap_cost[parent] <= c)
+        break;
+      heap_cost[i] = heap_cost[parent];
+      heap_id[i] = heap_id[parent];
+      i = parent;
+    }
+    heap_cost[i] = c;
+    heap_id[i] = id;
+  }
+
+  private int pop()
+  {
+    int top = heap_id[0];
+    float c = heap_cost[--heap_size];
+    int id = heap_id[heap_size];
+
+    // sift the last entry down from the root
+    int i = 0;
+    while(true)
+    {
+      int child = 2*i + 1;
+      if(child >= heap_size)
+        break;
+      if(child + 1 < heap_size && heap_cost[child + 1] < heap_cost[child])
+        child++;
+      if(heap_cost[child] >= c)
+        break;
+      heap_cost[i] = heap_cost[child];
+      heap_id[i] = heap_id[child];
+      i = child;
+    }
+    heap_cost[i] = c;
+    heap_id[i] = id;
+    return top;
+  }
+}
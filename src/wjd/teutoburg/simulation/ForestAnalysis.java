@@ -0,0 +1,177 @@
+/*
+ Copyright (C) 2012 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.teutoburg.simulation;
+
+import java.util.Arrays;
+import wjd.math.V2;
+
+/**
+ * What can be worked out about the forest of a TileGrid once it has been
+ * planted, so that regiments need only look it up:
+ *
+ * - for each cell, which way leads out of the surrounding trees: the sum of
+ * the unit vectors pointing away from each wooded cell around it, scaled by
+ * how thick the wood is there, which is the downhill slope of the forest's
+ * density smoothed over the cells around.
+ *
+ * - for each cell, how many steps away is the nearest open ground, a step
+ * being a move to any of the 8 surrounding cells.
+ *
+ * @author wdyce
+ * @since Jan 31, 2013
+ */
+public class ForestAnalysis
+{
+  /* CONSTANTS */
+  public static final int UNREACHED = -1;
+  /** Cells around each cell which count towards its slope: as far as a
+   * regiment can see. */
+  public static final int SLOPE_RADIUS = 5;
+
+  /* ATTRIBUTES */
+  private final TileGrid grid;
+  // forest the analysis was made for
+  private int forest_version = -1;
+  // downhill slope of the forest's density, by cell
+  private final float[] slope_x, slope_y;
+  // steps to the nearest open cell, by cell
+  private final int[] to_open;
+  private final int[] queue;
+
+  /* METHODS */
+
+  // constructors
+
+  ForestAnalysis(TileGrid grid)
+  {
+    this.grid = grid;
+    int n_cells = grid.getNCols() * grid.getNRows();
+    slope_x = new float[n_cells];
+    slope_y = new float[n_cells];
+    to_open = new int[n_cells];
+    queue = new int[n_cells];
+  }
+
+  // accessors
+
+  /**
+   * @param result set to the way out of the trees around the cell, the
+   * longer the thicker they are: zero in open country.
+   */
+  public V2 getSlope(int id, V2 result)
+  {
+    return result.xy(slope_x[id], slope_y[id]);
+  }
+
+  /**
+   * @return how many steps away the nearest open cell is: 0 if the cell
+   * itself is open, UNREACHED if every cell is wooded.
+   */
+  public int getStepsToOpen(int id)
+  {
+    return to_open[id];
+  }
+
+  public boolean isWooded(int id)
+  {
+    return (to_open[id] != 0);
+  }
+
+  boolean isStale()
+  {
+    return (forest_version != grid.getForestVersion());
+  }
+
+  // mutators
+
+  /**
+   * Analyse the forest as it is now.
+   */
+  void analyse()
+  {
+    forest_version = grid.getForestVersion();
+    slopes();
+    distancesToOpen();
+  }
+
+  /* SUBROUTINES */
+
+  private void slopes()
+  {
+    // unit vectors from each cell of the stencil back to its centre
+    TileStencil stencil = TileStencil.square(SLOPE_RADIUS);
+    int n = stencil.size();
+    float[] away_x = new float[n], away_y = new float[n];
+    for(int i = 0; i < n; i++)
+    {
+      float dx = -stencil.getDCol(i), dy = -stencil.getDRow(i),
+            norm = (float)Math.sqrt(dx*dx + dy*dy);
+      away_x[i] = dx / norm;
+      away_y[i] = dy / norm;
+    }
+
+    int n_cols = grid.getNCols(), n_rows = grid.getNRows();
+    for(int row = 0; row < n_rows; row++)
+    for(int col = 0; col < n_cols; col++)
+    {
+      float x = 0.0f, y = 0.0f;
+      for(int i = 0; i < n; i++)
+      {
+        int o_col = col + stencil.getDCol(i), o_row = row + stencil.getDRow(i);
+        if(!grid.validCell(o_col, o_row))
+          continue;
+        float forest = grid.getForest(grid.getId(o_col, o_row));
+        x += away_x[i] * forest;
+        y += away_y[i] * forest;
+      }
+      int id = grid.getId(col, row);
+      slope_x[id] = x;
+      slope_y[id] = y;
+    }
+  }
+
+  private void distancesToOpen()
+  {
+    Arrays.fill(to_open, UNREACHED);
+
+    // spread outwards from every open cell at once
+    int head = 0, tail = 0;
+    for(int id = 0; id < to_open.length; id++)
+      if(grid.getForest(id) <= 0)
+      {
+        to_open[id] = 0;
+        queue[tail++] = id;
+      }
+    TileStencil stencil = TileStencil.MOORE;
+    while(head < tail)
+    {
+      int id = queue[head++], col = grid.getCol(id), row = grid.getRow(id);
+      for(int i = 0; i < stencil.size(); i++)
+      {
+        int n_col = col + stencil.getDCol(i), n_row = row + stencil.getDRow(i);
+        if(!grid.validCell(n_col, n_row))
+          continue;
+        int n = grid.getId(n_col, n_row);
+        if(to_open[n] == UNREACHED)
+        {
+          to_open[n] = to_open[id] + 1;
+          queue[tail++] = n;
+        }
+      }
+    }
+  }
+}
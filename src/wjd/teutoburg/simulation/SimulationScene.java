@@ -28,9 +28,12 @@ import wjd.amb.view.ICanvas;
 import wjd.math.Rect;
 import wjd.math.V2;
 import wjd.teutoburg.MenuScene;
+import wjd.teutoburg.collision.AdaptiveCollisionManager;
 import wjd.teutoburg.collision.Agent;
+import wjd.teutoburg.collision.ECollisionBackend;
 import wjd.teutoburg.collision.ICollisionManager;
-import wjd.teutoburg.collision.ListCollisionManager;
+import wjd.teutoburg.collision.RectQueryBatch;
+import wjd.teutoburg.collision.SeparationSolver;
 import wjd.teutoburg.forest.Copse;
 import wjd.teutoburg.regiment.Cadaver;
 import wjd.teutoburg.regiment.Faction;
@@ -52,6 +55,12 @@ public class SimulationScene extends AScene
 	private static final int BARBARIAN_N_REGIMENTS = 70;
   // shared
   private static final float MAX_SOUND_RADIUS = Tile.SIZE.x*10;
+  private static final ECollisionBackend COLLISION_BACKEND 
+    = ECollisionBackend.ADAPTIVE;
+  // run with -Dteutoburg.logBroadPhase=true to see the broad-phase switches
+  private static final boolean LOG_BROAD_PHASE 
+    = Boolean.getBoolean("teutoburg.logBroadPhase");
+  private static final float PERCEPTION_CELL_SIZE = Tile.SIZE.x*10;
 
 	/* ATTRIBUTES */
   
@@ -70,10 +79,13 @@ public class SimulationScene extends AScene
 	private List<Cadaver> cadavers;
 
 	private ICollisionManager collisionManager;
+	private SeparationSolver separationSolver;
+	private RectQueryBatch perceptionBatch;
   
   // communication
   private List<HornBlast> hornsSounded;
   private final Rect sound_box = new Rect(MAX_SOUND_RADIUS*2, MAX_SOUND_RADIUS*2);
+  private TileGrid.Range soundRange;
 
 
 	/* METHODS */
@@ -101,12 +113,18 @@ public class SimulationScene extends AScene
 
 		// collisions and percepts
 		grid = new TileGrid(size.clone().scale(Tile.ISIZE).ceil());
+		soundRange = grid.createRange();
 		grid.clear();
-    collisionManager = new ListCollisionManager(map);
+    collisionManager = COLLISION_BACKEND.create(map);
+    if(LOG_BROAD_PHASE && collisionManager instanceof AdaptiveCollisionManager)
+      ((AdaptiveCollisionManager)collisionManager).setLog(System.out);
+    separationSolver = new SeparationSolver();
+    perceptionBatch = new RectQueryBatch(map, PERCEPTION_CELL_SIZE);
     
-		// generate forest
+		// generate forest, and analyse it once and for all
 		copses = new LinkedList<Copse>();
 		generateForest();
+		grid.getForestAnalysis();
 
 		// deploy soldiers
 		agents = new LinkedList<RegimentAgent>();
@@ -166,6 +184,8 @@ public class SimulationScene extends AScene
 			r.faceTowards(target);
 			agents.add(r);
 			collisionManager.register(r);
+			r.setCollisionManager(collisionManager);
+			separationSolver.register(r);
 		}
 	}
 
@@ -183,20 +203,20 @@ public class SimulationScene extends AScene
 		V2 p;
 		Tile tilep;
 		List<Tile> neighbours;
-		V2 dir_target = new V2(0,0), tmp = new V2(0,0);
+		V2 dir_target = new V2(0,0), tmp = new V2(0,0), pixel_pos = new V2();
 		for(int i = 0; i < BARBARIAN_N_REGIMENTS; i++)
 		{
 			p = new V2(((i%2 == 0) ? barb_deploy_W.endx() : barb_deploy_E.x), map.w/2);
 			tilep = grid.pixelToTile(p);
-			while(tilep.forest_amount.balance() < 0.3 || tilep.agent != null)
+			while(tilep.getForest() < 0.3 || tilep.getAgent() != null)
 			{
 				neighbours = grid.getNeighbours(tilep, true);
 				dir_target.xy(0,0);
 				for(Tile t : neighbours)
 				{
-					if(t.agent != null || t.forest_amount.balance() < 0.3)
+					if(t.getAgent() != null || t.getForest() < 0.3)
 					{
-						tmp.reset(p).sub(t.pixel_position);
+						tmp.reset(p).sub(t.getPixelPosition(pixel_pos));
 						tmp.normalise();
 						dir_target.add(tmp);
 					}
@@ -213,6 +233,8 @@ public class SimulationScene extends AScene
 			r.faceTowards(roman_deploy.getCentre());
 			agents.add(r);
       collisionManager.register(r);
+      r.setCollisionManager(collisionManager);
+      separationSolver.register(r);
 		}
 	}
 
@@ -221,6 +243,19 @@ public class SimulationScene extends AScene
 	@Override
 	public EUpdateResult update(int t_delta)
 	{
+    // sum up where everybody stands as the tick starts
+    grid.sumStrength();
+    grid.spreadDistances();
+    
+    // answer every regiment's perception query in a single pass
+    perceptionBatch.clear();
+    for(RegimentAgent ra : agents)
+    {
+      perceptionBatch.addCandidate(ra);
+      ra.queuePerception(perceptionBatch);
+    }
+    perceptionBatch.answer();
+    
 		// update all the agents
     Iterator<RegimentAgent> raI = agents.iterator();
     while(raI.hasNext())
@@ -235,8 +270,10 @@ public class SimulationScene extends AScene
 					|| ra.getCircle().centre.y < ra.getCircle().radius
 					|| ra.state == State.FLEEING && !ra.getCircle().inside(map))
 			{
-				ra.tile.setRegiment(null);
+				ra.leaveGrid();
 				raI.remove();
+				collisionManager.unregister(ra);
+				separationSolver.unregister(ra);
 			}
       
       // create a horn-blast ?
@@ -254,6 +291,9 @@ public class SimulationScene extends AScene
     
     // generate collision and boundary events
     collisionManager.generateCollisions();
+    
+    // push overlapping agents apart
+    separationSolver.resolve();
 
 		// all clear!
 		return EUpdateResult.CONTINUE;
@@ -318,6 +358,7 @@ public class SimulationScene extends AScene
 			if(event.key != null) switch(event.key)
 			{
 			case ESC:
+				collisionManager.dispose();
 				setNext(new MenuScene());
 				return EUpdateResult.REPLACE_ME;
 			}
@@ -338,14 +379,34 @@ public class SimulationScene extends AScene
     
     // build tile subgrid corresponding to sound blast area
 	  sound_box.centrePos(new_blast.position);
-	  TileGrid tilesWhereSounding = grid.createSubGrid(sound_box);
+	  Iterable<Tile> tilesWhereSounding = soundRange.cover(sound_box);
     
-	  // check all tiles in sound radius 
-	  for(Tile t : tilesWhereSounding)
-		  if(t.agent != null)
-        t.agent.hearTheHorn(new_blast);
+	  // check all tiles in sound radius, unless nobody but the horn-blower
+	  // stood anywhere near them as the tick started: a regiment moves at
+	  // most into a neighbour of the next tile in a tick
+	  if(hasAnybodyElseAround(sound_box, new_blast.source))
+	    for(Tile t : tilesWhereSounding)
+		    if(t.getAgent() != null)
+          t.getAgent().hearTheHorn(new_blast);
     
     // add horn blast to list to be draw
     hornsSounded.add(new_blast);
   }
+  
+  private boolean hasAnybodyElseAround(Rect area, RegimentAgent source)
+  {
+    int min_col = (int)(area.x * Tile.ISIZE.x) - 2, 
+        min_row = (int)(area.y * Tile.ISIZE.y) - 2,
+        max_col = (int)(area.endx() * Tile.ISIZE.x) + 2,
+        max_row = (int)(area.endy() * Tile.ISIZE.y) + 2;
+    int around 
+      = grid.getStrength(Faction.ROMAN, min_col, min_row, max_col, max_row)
+      + grid.getStrength(Faction.BARBARIAN, min_col, min_row, max_col, max_row);
+    
+    // the source was counted in the area with at least the strength now 
+    // stamped on its tile, as regiments only gain strength during the
+    // collision pass, so taking that away never hides anybody else
+    return (around 
+      - grid.getStrength(source.getFaction().index, source.tile.getId()) > 0);
+  }
 }
@@ -16,22 +16,18 @@
  */
 package wjd.teutoburg.simulation;
 
-import wjd.amb.control.EUpdateResult;
-import wjd.amb.control.IDynamic;
-import wjd.amb.view.Colour;
-import wjd.amb.view.ICanvas;
-import wjd.amb.view.IVisible;
-import wjd.math.Rect;
 import wjd.math.V2;
 import wjd.teutoburg.regiment.RegimentAgent;
-import wjd.util.BoundedValue;
 
 /**
+ * A view of one cell of a TileGrid. The cell's contents live in the grid's
+ * columns, so a Tile holds nothing but the cell's index and can be created or
+ * thrown away at will. Two Tiles of the same cell are equal.
  *
  * @author wdyce
  * @since Nov 1, 2012
  */
-public class Tile implements IVisible, IDynamic
+public class Tile
 {
   /* CONSTANTS */
   public static final V2 SIZE = new V2(128, 128);
@@ -41,63 +37,101 @@ public class Tile implements IVisible, IDynamic
 
   /* ATTRIBUTES */
   public final TileGrid grid;
-  public final V2 grid_position, pixel_position;
-  private final Rect pixel_area;
-  
-  public BoundedValue forest_amount = new BoundedValue(1.0f);
-  public RegimentAgent agent = null;
+  private int id;
   
   /* METHODS */
   
   // constructors
-  public Tile(int row, int col, TileGrid grid)
+  Tile(TileGrid grid, int id)
   {
-    grid_position = new V2(col, row);
-    pixel_position = grid_position.clone().scale(SIZE);
-    pixel_area = new Rect(pixel_position, SIZE);
     this.grid = grid;
+    this.id = id;
   }
   
   // mutators
   public boolean setRegiment(RegimentAgent agent_)
   {
-    if(agent == null || agent_ == null)
-    {
-      agent = agent_;
-      return true;
-    }
-    else
-      return false;
+    return grid.setRegiment(id, agent_);
+  }
+  
+  /**
+   * Move the view onto another cell of the same grid.
+   */
+  void moveTo(int id_)
+  {
+    this.id = id_;
   }
   
   // accessors
+  public int getId()
+  {
+    return id;
+  }
+  
+  public int getCol()
+  {
+    return grid.getCol(id);
+  }
+  
+  public int getRow()
+  {
+    return grid.getRow(id);
+  }
+  
+  public float getPixelX()
+  {
+    return getCol() * SIZE.x;
+  }
+  
+  public float getPixelY()
+  {
+    return getRow() * SIZE.y;
+  }
+  
+  public V2 getPixelPosition(V2 result)
+  {
+    return result.xy(getPixelX(), getPixelY());
+  }
+  
   public void getCentrePosition(V2 result)
   {
-    result.reset(pixel_position).add(HSIZE);
+    result.xy(getPixelX() + HSIZE.x, getPixelY() + HSIZE.y);
   }
-
-  /* OVERRIDES -- IDYNAMIC */
-  @Override
-  public void render(ICanvas canvas)
+  
+  public RegimentAgent getAgent()
+  {
+    return grid.getAgent(id);
+  }
+  
+  public float getForest()
   {
-    // do nothing
+    return grid.getForest(id);
+  }
+  
+  public boolean isForestEmpty()
+  {
+    return (grid.getForest(id) <= 0);
   }
   
   /* OVERRIDES -- OBJECT */
   @Override
-  public String toString()
+  public boolean equals(Object other)
   {
-    return "Tile @"+grid_position;
+    if(!(other instanceof Tile))
+      return false;
+    Tile t = (Tile)other;
+    return (t.id == id && t.grid.sharesCells(grid));
   }
   
-  /* IMPLEMENTS -- IDYNAMIC */
- 
   @Override
-  public EUpdateResult update(int t_delta)
+  public int hashCode()
   {
-    // all clear
-    return EUpdateResult.CONTINUE;
+    return id;
   }
   
-  /* SUBROUTINES */
+  @Override
+  public String toString()
+  {
+    return "Tile @(" + getCol() + ", " + getRow() + ')';
+  }
 }
@@ -16,32 +16,73 @@
  */
 package wjd.teutoburg.simulation;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import wjd.math.Rect;
 import wjd.math.V2;
 import wjd.teutoburg.forest.Copse;
+import wjd.teutoburg.regiment.Faction;
+import wjd.teutoburg.regiment.RegimentAgent;
 
 /**
+ * The contents of every cell of the map, kept as columns indexed by cell id,
+ * the id of the cell at (col, row) being row*n_cols + col. A sub-grid shares
+ * the columns of the grid it was cut from, and Tiles are only views onto a
+ * single cell.
  *
  * @author wdyce
  * @since Nov 9, 2012
  */
 public class TileGrid implements Iterable<Tile>
 {
+  /* CONSTANTS */
+  private static final float FOREST_MAX = 1.0f;
+  /** One layer of influence per faction, in the open and in the woods. */
+  public static final int N_INFLUENCE_LAYERS = 2 * Faction.N_FACTIONS;
+  // what needs rebuilding since the strength on some cell changed
+  private static final int STALE_SUMS = 0, STALE_DISTANCES = 1;
+  
   /* ATTRIBUTES */
 
-  public final Tile[][] tiles;
+  // columns, shared with sub-grids
+  private final float[] forest;
+  private final RegimentAgent[] agent;
+  private final int[][] influence;
+  // strength of each faction standing on each cell, and its integral image:
+  // summed[f][(row+1)*(n_cols+1) + col+1] is the sum over [0..col]x[0..row]
+  private final int[][] presence, summed;
+  private final boolean[] stale; // in an array to share it
+  // distance fields, one per faction, in the open only and anywhere
+  private final DistanceField[] distances;
+  // flow fields, one per goal, and how many times the forest has changed
+  private final List<FlowField> flows;
+  private final int[] forest_version; // in an array to share it
+  private final ForestAnalysis forest_analysis;
+  private final int n_cols, n_rows;
+  // cells covered by this grid, bounds included
   private final Rect grid_area;
   private final Rect pixel_area;
   
   /* METHODS */
   
   // constructors
-  private TileGrid(Tile[][] tiles, Rect grid_area)
+  private TileGrid(TileGrid parent, Rect grid_area)
   {
-    this.tiles = tiles;
+    this.forest = parent.forest;
+    this.agent = parent.agent;
+    this.influence = parent.influence;
+    this.presence = parent.presence;
+    this.summed = parent.summed;
+    this.stale = parent.stale;
+    this.distances = parent.distances;
+    this.flows = parent.flows;
+    this.forest_version = parent.forest_version;
+    this.forest_analysis = parent.forest_analysis;
+    this.n_cols = parent.n_cols;
+    this.n_rows = parent.n_rows;
     this.grid_area = grid_area;
     this.pixel_area 
       = new Rect(grid_area.pos(), grid_area.size().add(1,1)).mult(Tile.SIZE);
@@ -49,8 +90,26 @@ public class TileGrid implements Iterable<Tile>
   
   public TileGrid(V2 size)
   {
-    this(new Tile[(int)size.y][(int)size.x], 
-         new Rect(V2.ORIGIN, size.clone().dinc()).floor());
+    n_cols = (int)size.x;
+    n_rows = (int)size.y;
+    forest = new float[n_cols * n_rows];
+    agent = new RegimentAgent[n_cols * n_rows];
+    influence = new int[N_INFLUENCE_LAYERS][n_cols * n_rows];
+    presence = new int[Faction.N_FACTIONS][n_cols * n_rows];
+    summed = new int[Faction.N_FACTIONS][(n_cols + 1) * (n_rows + 1)];
+    stale = new boolean[] { false, false };
+    distances = new DistanceField[2 * Faction.N_FACTIONS];
+    for(int f = 0; f < Faction.N_FACTIONS; f++)
+    {
+      distances[2*f] = new DistanceField(this, f, false);
+      distances[2*f + 1] = new DistanceField(this, f, true);
+    }
+    flows = new ArrayList<FlowField>();
+    forest_version = new int[] { 0 };
+    forest_analysis = new ForestAnalysis(this);
+    grid_area = new Rect(V2.ORIGIN, size.clone().dinc()).floor();
+    pixel_area 
+      = new Rect(grid_area.pos(), grid_area.size().add(1,1)).mult(Tile.SIZE);
   }
 
   // mutators
@@ -61,10 +120,108 @@ public class TileGrid implements Iterable<Tile>
   {
     // set all tiles as free
     for (int row = (int) grid_area.y; row <= (int)(grid_area.endy()); row++)
-      for (int col = (int) grid_area.x; col <= (int) (grid_area.endx()); col++)
-        tiles[row][col] = new Tile(row, col, this);
+    {
+      int first = getId((int) grid_area.x, row), 
+          last = getId((int) grid_area.endx(), row) + 1;
+      Arrays.fill(forest, first, last, 0.0f);
+      Arrays.fill(agent, first, last, null);
+      for(int[] layer : influence)
+        Arrays.fill(layer, first, last, 0);
+      for(int[] layer : presence)
+        Arrays.fill(layer, first, last, 0);
+    }
+    stale[STALE_SUMS] = stale[STALE_DISTANCES] = true;
+    forest_version[0]++;
     return this;
   }
+  
+  /**
+   * Claim a cell for a regiment, or free it if the regiment is null.
+   * 
+   * @return false if the cell is already claimed by another regiment.
+   */
+  public boolean setRegiment(int id, RegimentAgent agent_)
+  {
+    if(agent[id] == null || agent_ == null)
+    {
+      agent[id] = agent_;
+      return true;
+    }
+    else
+      return false;
+  }
+
+  /**
+   * Add an amount to a layer of influence, over the square of cells at most
+   * radius columns and rows away from (col, row) which are on the grid.
+   */
+  public void stampInfluence(int layer, int col, int row, int radius, 
+                             int amount)
+  {
+    int[] values = influence[layer];
+    int min_col = Math.max(col - radius, 0), 
+        max_col = Math.min(col + radius, n_cols - 1),
+        max_row = Math.min(row + radius, n_rows - 1);
+    for(int r = Math.max(row - radius, 0); r <= max_row; r++)
+      for(int id = getId(min_col, r), last = id + max_col - min_col; 
+          id <= last; id++)
+        values[id] += amount;
+  }
+
+  /**
+   * Add an amount to the strength of a faction standing on a cell. This is 
+   * only seen by the rectangle getStrength once sumStrength has been 
+   * called, and by the distance fields once spreadDistances has.
+   */
+  public void addStrength(int faction, int id, int amount)
+  {
+    presence[faction][id] += amount;
+    stale[STALE_SUMS] = stale[STALE_DISTANCES] = true;
+  }
+  
+  /**
+   * Rebuild the integral images read by getStrength, if the strength on any
+   * cell has changed since they were last built. Meant to be called once at
+   * the start of each tick.
+   */
+  public void sumStrength()
+  {
+    if(!stale[STALE_SUMS])
+      return;
+    
+    int stride = n_cols + 1;
+    for(int f = 0; f < Faction.N_FACTIONS; f++)
+    {
+      int[] cells = presence[f], sums = summed[f];
+      for(int row = 0; row < n_rows; row++)
+      {
+        // sum of the row so far, plus the sums of the rows above
+        int row_sum = 0, 
+            above = row*stride + 1, 
+            here = above + stride;
+        for(int col = 0; col < n_cols; col++)
+        {
+          row_sum += cells[row*n_cols + col];
+          sums[here + col] = sums[above + col] + row_sum;
+        }
+      }
+    }
+    stale[STALE_SUMS] = false;
+  }
+  
+  /**
+   * Spread the distance fields again, if the strength on any cell has 
+   * changed since they were last spread. Meant to be called once at the start
+   * of each tick.
+   */
+  public void spreadDistances()
+  {
+    if(!stale[STALE_DISTANCES])
+      return;
+    for(DistanceField field : distances)
+      field.spread();
+    stale[STALE_DISTANCES] = false;
+  }
 
   // accessors
   
@@ -73,6 +230,129 @@ public class TileGrid implements Iterable<Tile>
     return pixel_area;
   }
   
+  public int getNCols()
+  {
+    return n_cols;
+  }
+  
+  public int getNRows()
+  {
+    return n_rows;
+  }
+  
+  public int getId(int col, int row)
+  {
+    return row*n_cols + col;
+  }
+  
+  public int getCol(int id)
+  {
+    return id % n_cols;
+  }
+  
+  public int getRow(int id)
+  {
+    return id / n_cols;
+  }
+  
+  public RegimentAgent getAgent(int id)
+  {
+    return agent[id];
+  }
+  
+  public float getForest(int id)
+  {
+    return forest[id];
+  }
+  
+  public int getInfluence(int layer, int id)
+  {
+    return influence[layer][id];
+  }
+  
+  /**
+   * @return how much of a faction stands on a cell right now.
+   */
+  public int getStrength(int faction, int id)
+  {
+    return presence[faction][id];
+  }
+  
+  /**
+   * @param woods whether regiments standing in the woods should be counted.
+   * @return the distance field leading to a faction's regiments.
+   */
+  public DistanceField getDistanceField(int faction, boolean woods)
+  {
+    return distances[2*faction + (woods ? 1 : 0)];
+  }
+  
+  /**
+   * @return the flow field leading to a rectangle of cells, bounds included,
+   * shared with everyone else asking for the same goal.
+   */
+  public FlowField getFlowField(int min_col, int min_row, 
+                                int max_col, int max_row)
+  {
+    for(FlowField flow : flows)
+      if(flow.hasGoal(min_col, min_row, max_col, max_row))
+        return flow;
+    FlowField flow = new FlowField(this, min_col, min_row, max_col, max_row);
+    flows.add(flow);
+    return flow;
+  }
+  
+  /**
+   * @return the analysis of the forest, made again if the forest has changed
+   * since it was last made: best asked for once the forest is planted.
+   */
+  public ForestAnalysis getForestAnalysis()
+  {
+    if(forest_analysis.isStale())
+      forest_analysis.analyse();
+    return forest_analysis;
+  }
+  
+  int getForestVersion()
+  {
+    return forest_version[0];
+  }
+  
+  /**
+   * How much of a faction was standing in a rectangle of cells, bounds 
+   * included, when sumStrength was last called? This costs four look-ups
+   * whatever the size of the rectangle.
+   */
+  public int getStrength(Faction faction, int min_col, int min_row, 
+                                          int max_col, int max_row)
+  {
+    min_col = Math.max(min_col, 0);
+    min_row = Math.max(min_row, 0);
+    max_col = Math.min(max_col, n_cols - 1);
+    max_row = Math.min(max_row, n_rows - 1);
+    if(min_col > max_col || min_row > max_row)
+      return 0;
+    
+    int[] sums = summed[faction.index];
+    int stride = n_cols + 1, top = min_row*stride, bottom = (max_row+1)*stride;
+    return sums[bottom + max_col + 1] - sums[bottom + min_col]
+         - sums[top + max_col + 1] + sums[top + min_col];
+  }
+  
+  /**
+   * How much of a faction was standing in the cells inside a rectangle, as
+   * createSubGrid would pick them, when sumStrength was last called?
+   * 
+   * @param pixel_area the rectangle, in pixels.
+   */
+  public int getStrength(Faction faction, Rect pixel_area)
+  {
+    return getStrength(faction, (int)(pixel_area.x * Tile.ISIZE.x),
+                                (int)(pixel_area.y * Tile.ISIZE.y),
+                                (int)(pixel_area.endx() * Tile.ISIZE.x),
+                                (int)(pixel_area.endy() * Tile.ISIZE.y));
+  }
+  
   /**
    * Grab the Tile at the specified "pixel" position (x, y).
    *
@@ -83,18 +363,13 @@ public class TileGrid implements Iterable<Tile>
    */
   public Tile pixelToTile(V2 pixel_pos)
   {
+    int col = (int)Math.floor(pixel_pos.x * Tile.ISIZE.x),
+        row = (int)Math.floor(pixel_pos.y * Tile.ISIZE.y);
     
-    
-    
-    V2 grid_pos = pixel_pos.clone().floor().scale(Tile.ISIZE);
-    
-    
-    if(!validGridPos(grid_pos))
+    if(!validCell(col, row))
       System.out.println("bink");
     
-    return (validGridPos(grid_pos) 
-            ? tiles[(int)grid_pos.y][(int)grid_pos.x] 
-            : null);
+    return getTile(col, row);
   }
   
   /**
@@ -108,9 +383,18 @@ public class TileGrid implements Iterable<Tile>
   public Tile gridToTile(V2 grid_pos)
   {
     return (validGridPos(grid_pos) 
-            ? tiles[(int)grid_pos.y][(int)grid_pos.x] 
+            ? getTile((int)grid_pos.x, (int)grid_pos.y) 
             : null);
   }
+  
+  /**
+   * @return a view of the cell at (col, row), or null if there is no such 
+   * cell.
+   */
+  public Tile getTile(int col, int row)
+  {
+    return (validCell(col, row) ? new Tile(this, getId(col, row)) : null);
+  }
 
   /**
    * Which cells of the grid are inside the rectangle?
@@ -131,13 +415,31 @@ public class TileGrid implements Iterable<Tile>
     
     // constraints
     sub_grid_area = sub_grid_area.getIntersection(grid_area);
-    return (sub_grid_area == null) ? null : new TileGrid(tiles, sub_grid_area);
+    return (sub_grid_area == null) ? null : new TileGrid(this, sub_grid_area);
+  }
+
+  /**
+   * @return a view of a range of this grid's cells, which can be moved about 
+   * from one call to the next without allocating anything.
+   */
+  public Range createRange()
+  {
+    return new Range(this);
+  }
+  
+  /**
+   * @return a view of the cells of this grid matching the stencil around a 
+   * given cell, which can be moved about without allocating anything.
+   */
+  public Neighbours createNeighbours(TileStencil stencil)
+  {
+    return new Neighbours(this, stencil);
   }
 
   public List<Tile> getNeighbours(Tile tile, boolean diagonals)
   {
     // local variables
-    V2 pos = new V2();
+    int tile_col = tile.getCol(), tile_row = tile.getRow();
     Tile neighbour;
     LinkedList<Tile> neighbour_list = new LinkedList<Tile>();
     
@@ -146,7 +448,7 @@ public class TileGrid implements Iterable<Tile>
     for(int col = -1; col < 2; col++)
     if(diagonals || Math.abs(row + col) == 1) // only the 4 direct neighbours
     {
-      neighbour = gridToTile(pos.reset(tile.grid_position).add(col, row));
+      neighbour = getTile(tile_col + col, tile_row + row);
       if(neighbour != null)
         neighbour_list.add(neighbour);
     }
@@ -165,7 +467,20 @@ public class TileGrid implements Iterable<Tile>
   public boolean validGridPos(V2 grid_pos)
   {
     return (grid_pos.x >= 0 && grid_pos.y >= 0
-            && grid_pos.y < tiles.length && grid_pos.x < tiles[0].length);
+            && grid_pos.y < n_rows && grid_pos.x < n_cols);
+  }
+  
+  public boolean validCell(int col, int row)
+  {
+    return (col >= 0 && row >= 0 && row < n_rows && col < n_cols);
+  }
+  
+  /**
+   * Do the two grids view the same cells?
+   */
+  boolean sharesCells(TileGrid other)
+  {
+    return (other.forest == forest);
   }
 
   /* OVERRIDES -- OBJECT */
@@ -179,56 +494,153 @@ public class TileGrid implements Iterable<Tile>
   {
     Rect copse_area = new Rect();
       copse.getCircle().getBoundingBox(copse_area);
-    V2 copse_centre = copse.getCircle().centre;
-    
+    V2 tile_centre = new V2();
     
     TileGrid tree_tiles = createSubGrid(copse_area);
     for(Tile t : tree_tiles)
     {
-      V2 tile_centre = t.pixel_position.clone().add(Tile.HSIZE);
-      t.forest_amount.tryDeposit(copse.getCircle().getCloseness(tile_centre));
+      t.getCentrePosition(tile_centre);
+      int id = t.getId();
+      forest[id] = Math.min(FOREST_MAX, 
+        forest[id] + copse.getCircle().getCloseness(tile_centre));
     }
+    forest_version[0]++;
   }
 
   /* IMPLEMENTS -- ITERABLE */
+  
+  /**
+   * Walks through the cells of a grid row by row. The same Tile is returned
+   * at each step, moved onto the next cell, so it should not be kept.
+   */
   public static class RowByRow implements Iterator<Tile>
   {
     // attributes
 
     private final TileGrid tilegrid;
-    private V2 current_pos;
+    private final Tile view;
+    private final int min_col, max_col, max_row;
+    private int col, row;
 
     // methods
     public RowByRow(TileGrid tilegrid)
     {
       this.tilegrid = tilegrid;
-      this.current_pos = tilegrid.grid_area.pos();
+      this.view = new Tile(tilegrid, 0);
+      min_col = (int)tilegrid.grid_area.x;
+      max_col = (int)tilegrid.grid_area.endx();
+      max_row = (int)tilegrid.grid_area.endy();
+      col = min_col;
+      row = (int)tilegrid.grid_area.y;
     }
     
     @Override
     public boolean hasNext()
     {
-      return (current_pos != null);
+      return (row <= max_row);
     }
 
     @Override
     public Tile next()
     {
-      Tile previous = tilegrid.gridToTile(current_pos);
+      view.moveTo(tilegrid.getId(col, row));
       
       // overlap collumns
-      current_pos.x++;
-      if(current_pos.x > tilegrid.grid_area.endx())
+      col++;
+      if(col > max_col)
       {
-        current_pos.x = tilegrid.grid_area.x;
-        current_pos.y++;
+        col = min_col;
+        row++;
       }
+
+      return view;
+    }
+
+    @Override
+    public void remove()
+    {
+      throw new UnsupportedOperationException("remove not supported.");
+    }
+  }
+
+  /**
+   * Walks through the cells of a rectangle of the grid row by row, like a 
+   * sub-grid. The range can be moved and walked again as often as needed, 
+   * the same Tile being returned at each step, so it should not be kept.
+   * Only one walk through a given range can be in progress at a time.
+   */
+  public static class Range implements Iterable<Tile>, Iterator<Tile>
+  {
+    // attributes
+
+    private final TileGrid tilegrid;
+    private final Tile view;
+    private int min_col, min_row, max_col, max_row;
+    private int col, row;
+
+    // methods
+    private Range(TileGrid tilegrid)
+    {
+      this.tilegrid = tilegrid;
+      this.view = new Tile(tilegrid, 0);
+      cells(0, 0, -1, -1);
+    }
+    
+    /**
+     * Cover the cells inside a rectangle, as createSubGrid would.
+     * 
+     * @param pixel_area the rectangle, in pixels.
+     */
+    public Range cover(Rect pixel_area)
+    {
+      return cells((int)(pixel_area.x * Tile.ISIZE.x),
+                   (int)(pixel_area.y * Tile.ISIZE.y),
+                   (int)(pixel_area.endx() * Tile.ISIZE.x),
+                   (int)(pixel_area.endy() * Tile.ISIZE.y));
+    }
+    
+    /**
+     * Cover the cells between two corners, bounds included, keeping only 
+     * those on the grid.
+     */
+    public Range cells(int min_col_, int min_row_, int max_col_, int max_row_)
+    {
+      Rect area = tilegrid.grid_area;
+      min_col = Math.max(min_col_, (int)area.x);
+      min_row = Math.max(min_row_, (int)area.y);
+      max_col = Math.min(max_col_, (int)area.endx());
+      max_row = Math.min(max_row_, (int)area.endy());
+      return this;
+    }
+    
+    @Override
+    public Iterator<Tile> iterator()
+    {
+      col = min_col;
+      row = (min_col <= max_col) ? min_row : max_row + 1;
+      return this;
+    }
+    
+    @Override
+    public boolean hasNext()
+    {
+      return (row <= max_row);
+    }
+
+    @Override
+    public Tile next()
+    {
+      view.moveTo(tilegrid.getId(col, row));
       
-      // overlap row
-      if(current_pos.y > tilegrid.grid_area.endy())
-        current_pos = null;
+      // overlap collumns
+      col++;
+      if(col > max_col)
+      {
+        col = min_col;
+        row++;
+      }
 
-      return previous;
+      return view;
     }
 
     @Override
@@ -237,6 +649,80 @@ public class TileGrid implements Iterable<Tile>
       throw new UnsupportedOperationException("remove not supported.");
     }
   }
+  
+  /**
+   * Walks through the cells of a stencil around a centre cell, skipping 
+   * those off the grid. Like a Range it can be moved and walked again as 
+   * often as needed, returning the same Tile at each step.
+   */
+  public static class Neighbours implements Iterable<Tile>, Iterator<Tile>
+  {
+    // attributes
+
+    private final TileGrid tilegrid;
+    private final TileStencil stencil;
+    private final Tile view;
+    private int centre_col, centre_row;
+    private int i;
+
+    // methods
+    private Neighbours(TileGrid tilegrid, TileStencil stencil)
+    {
+      this.tilegrid = tilegrid;
+      this.stencil = stencil;
+      this.view = new Tile(tilegrid, 0);
+    }
+    
+    public Neighbours around(Tile centre)
+    {
+      return around(centre.getCol(), centre.getRow());
+    }
+    
+    public Neighbours around(int col, int row)
+    {
+      centre_col = col;
+      centre_row = row;
+      return this;
+    }
+    
+    @Override
+    public Iterator<Tile> iterator()
+    {
+      i = 0;
+      skipInvalid();
+      return this;
+    }
+    
+    @Override
+    public boolean hasNext()
+    {
+      return (i < stencil.d_col.length);
+    }
+
+    @Override
+    public Tile next()
+    {
+      view.moveTo(tilegrid.getId(centre_col + stencil.d_col[i], 
+                                 centre_row + stencil.d_row[i]));
+      i++;
+      skipInvalid();
+      return view;
+    }
+
+    @Override
+    public void remove()
+    {
+      throw new UnsupportedOperationException("remove not supported.");
+    }
+    
+    private void skipInvalid()
+    {
+      while(i < stencil.d_col.length 
+      && !tilegrid.validCell(centre_col + stencil.d_col[i], 
+                             centre_row + stencil.d_row[i]))
+        i++;
+    }
+  }
 
   @Override
   public Iterator<Tile> iterator()
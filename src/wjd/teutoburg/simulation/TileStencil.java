@@ -0,0 +1,110 @@
+/*
+ Copyright (C) 2012 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.teutoburg.simulation;
+
+/**
+ * The offsets from a cell to each of the cells around it, not including the
+ * cell itself, worked out once and for all. The offsets are listed row by
+ * row, top to bottom and left to right.
+ *
+ * @author wdyce
+ * @since Jan 28, 2013
+ */
+public final class TileStencil
+{
+  /* CONSTANTS */
+  /** The 4 cells sharing a side with the centre. */
+  public static final TileStencil VON_NEUMANN = disc(1);
+  /** The 8 cells sharing a side or a corner with the centre. */
+  public static final TileStencil MOORE = square(1);
+
+  /* ATTRIBUTES */
+  final int[] d_col, d_row;
+  private final int radius;
+
+  /* METHODS */
+
+  // constructors
+
+  /**
+   * @return the cells at most radius columns and radius rows away.
+   */
+  public static TileStencil square(int radius)
+  {
+    return new TileStencil(radius, false);
+  }
+
+  /**
+   * @return the cells whose centres are at most radius cells away.
+   */
+  public static TileStencil disc(int radius)
+  {
+    return new TileStencil(radius, true);
+  }
+
+  private TileStencil(int radius_, boolean round)
+  {
+    this.radius = radius_;
+
+    // count the cells, then list their offsets
+    int n = 0;
+    for(int row = -radius; row <= radius; row++)
+    for(int col = -radius; col <= radius; col++)
+      if(inside(col, row, round))
+        n++;
+    d_col = new int[n];
+    d_row = new int[n];
+    n = 0;
+    for(int row = -radius; row <= radius; row++)
+    for(int col = -radius; col <= radius; col++)
+      if(inside(col, row, round))
+      {
+        d_col[n] = col;
+        d_row[n++] = row;
+      }
+  }
+
+  // accessors
+
+  public int size()
+  {
+    return d_col.length;
+  }
+
+  public int getRadius()
+  {
+    return radius;
+  }
+
+  public int getDCol(int i)
+  {
+    return d_col[i];
+  }
+
+  public int getDRow(int i)
+  {
+    return d_row[i];
+  }
+
+  /* SUBROUTINES */
+
+  private boolean inside(int col, int row, boolean round)
+  {
+    return ((col != 0 || row != 0)
+            && (!round || col*col + row*row <= radius*radius));
+  }
+}